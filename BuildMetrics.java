@@ -0,0 +1,312 @@
+/*
+ * BuildMetrics.java
+ *
+ * Collects where the time of one tree build goes: wall time, CPU time and
+ * allocated bytes per phase, and counters of the work done in each one.
+ * Driver creates one per input file when asked for a metrics report (see
+ * its -metrics option) and passes it to PhyloTree.
+ *
+ * Phases are timed by closing the timer that start returns:
+ *
+ *   BuildMetrics.Timer timer = metrics.start(BuildMetrics.Phase.DISTANCES);
+ *   try {
+ *       ...
+ *   } finally {
+ *       timer.close();
+ *   }
+ *
+ * CPU time and allocation are those of the thread that runs the phase;
+ * work handed to pool threads only shows in its wall time. A phase that
+ * runs several times (indexing after insertions, say) adds up.
+ *
+ * Every timed phase is also a BuildPhaseEvent for Java Flight Recorder.
+ * When the metrics are disabled and no recording asks for those events,
+ * start returns a shared timer that does nothing and the counters return
+ * at once, so DISABLED costs one branch per call. Counters are only
+ * touched per row, per scan, per merge or per phase, never per distance:
+ * the build loops add up the distances they read and write themselves
+ * and report them in one call.
+ *
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BuildMetrics {
+    public enum Phase {
+        PARSE,          // reading the FASTA file
+        DISTANCES,      // the all-pairs distance matrix
+        CLUSTERING,     // merging clusters into the tree
+        INDEXING,       // label and least common ancestor indexes
+        RENDERING,      // the printed tree and the Newick file
+        OUTPUT          // the evolutionary distance matrix and its files
+    }
+
+    public enum Counter {
+        DISTANCE_EVALUATIONS,   // distances computed between two species
+        MERGES,                 // non-terminals created
+        MATRIX_READS,           // distances read from the matrix during the build
+        MATRIX_WRITES,          // distances written to the matrix during the build
+        LABEL_LOOKUPS,          // labels looked up by the query methods
+        BYTES_WRITTEN           // bytes of the output files
+    }
+
+    public static final BuildMetrics DISABLED = new BuildMetrics(null, false);
+
+    private static final Timer NOOP = new Timer(null, null, null);
+    private static final jdk.jfr.EventType EVENT_TYPE = jdk.jfr.EventType.getEventType(BuildPhaseEvent.class);
+
+    private final String input;                 // Name of the input file, for the report and the JFR events
+    private final boolean enabled;              // Whether anything is recorded
+    private final long[] wallNanos;             // Wall time of each phase
+    private final long[] cpuNanos;              // CPU time of each phase, on the thread that ran it
+    private final long[] allocatedBytes;        // Bytes allocated during each phase, by the thread that ran it
+    private final LongAdder[] counts;           // Value of each counter
+
+    // CONSTRUCTOR
+
+    // BuildMetrics
+    // Pre-conditions:
+    //      - input names the input file the build is for
+    // Post-conditions:
+    //      - Enabled metrics with every phase and counter at zero are created
+    public BuildMetrics(String input) {
+        this(input, true);
+    }
+
+    //    - Creates metrics for input, recording only if enabled is true
+    private BuildMetrics(String input, boolean enabled) {
+        this.input = input;
+        this.enabled = enabled;
+        this.wallNanos = new long[Phase.values().length];
+        this.cpuNanos = new long[Phase.values().length];
+        this.allocatedBytes = new long[Phase.values().length];
+        this.counts = new LongAdder[Counter.values().length];
+        for( int c=0; c<this.counts.length; c++ ) {
+            this.counts[c] = new LongAdder();
+        }
+        return;
+    }
+
+    // ACCESSORS
+
+    // isEnabled
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns true if these metrics record anything
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    // getWallNanos
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the wall time spent in phase so far, in nanoseconds
+    public synchronized long getWallNanos(Phase phase) {
+        return this.wallNanos[phase.ordinal()];
+    }
+
+    // getCpuNanos
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the CPU time the timing thread spent in phase so far, in nanoseconds (-1 if the VM cannot tell)
+    public synchronized long getCpuNanos(Phase phase) {
+        return this.cpuNanos[phase.ordinal()];
+    }
+
+    // getAllocatedBytes
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the bytes the timing thread allocated in phase so far (-1 if the VM cannot tell)
+    public synchronized long getAllocatedBytes(Phase phase) {
+        return this.allocatedBytes[phase.ordinal()];
+    }
+
+    // getCount
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the value of counter
+    public long getCount(Counter counter) {
+        return this.counts[counter.ordinal()].sum();
+    }
+
+    // MODIFIERS
+
+    // start
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Starts timing phase; closing the returned timer adds the time since then to the phase
+    //          and commits a BuildPhaseEvent
+    public Timer start(Phase phase) {
+        if( !this.enabled && !EVENT_TYPE.isEnabled() ) {
+            return NOOP;
+        }
+        return new Timer(this, phase, this.input);
+    }
+
+    // add
+    // Pre-conditions:
+    //        - amount is not negative
+    // Post-conditions:
+    //        - Adds amount to counter; safe to call from several threads
+    public void add(Counter counter, long amount) {
+        if( !this.enabled ) {
+            return;
+        }
+        this.counts[counter.ordinal()].add(amount);
+        return;
+    }
+
+    // writeReport
+    // Pre-conditions:
+    //        - out is an open Writer
+    // Post-conditions:
+    //        - Writes the metrics to out as one JSON object:
+    //          {"input":..., "phases":{"parse":{"wallNanos":..,"cpuNanos":..,"allocatedBytes":..}, ...},
+    //           "counters":{"distanceEvaluations":.., ...}}
+    public synchronized void writeReport(Writer out) throws IOException {
+        out.write("{\n  \"input\": ");
+        writeString(out, this.input);
+        out.write(",\n  \"phases\": {");
+        Phase[] phases = Phase.values();
+        for( int p=0; p<phases.length; p++ ) {
+            out.write(p == 0 ? "\n    " : ",\n    ");
+            writeString(out, camelCase(phases[p].name()));
+            out.write(": {\"wallNanos\": " + this.wallNanos[p]
+                      + ", \"cpuNanos\": " + this.cpuNanos[p]
+                      + ", \"allocatedBytes\": " + this.allocatedBytes[p] + "}");
+        }
+        out.write("\n  },\n  \"counters\": {");
+        Counter[] counters = Counter.values();
+        for( int c=0; c<counters.length; c++ ) {
+            out.write(c == 0 ? "\n    " : ",\n    ");
+            writeString(out, camelCase(counters[c].name()));
+            out.write(": " + this.counts[c].sum());
+        }
+        out.write("\n  }\n}\n");
+        return;
+    }
+
+    //    - Adds the measurements of one run of phase
+    private synchronized void record(Phase phase, long wall, long cpu, long allocated) {
+        int p = phase.ordinal();
+        this.wallNanos[p] += wall;
+        this.cpuNanos[p] = (cpu < 0 || this.cpuNanos[p] < 0) ? -1 : this.cpuNanos[p] + cpu;
+        this.allocatedBytes[p] = (allocated < 0 || this.allocatedBytes[p] < 0) ? -1 : this.allocatedBytes[p] + allocated;
+        return;
+    }
+
+    // STATIC
+
+    //    - Writes s as a JSON string, or null
+    private static void writeString(Writer out, String s) throws IOException {
+        if( s == null ) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for( int i=0; i<s.length(); i++ ) {
+            char c = s.charAt(i);
+            if( c == '"' || c == '\\' ) {
+                out.write('\\');
+                out.write(c);
+            } else if( c < 0x20 ) {
+                out.write(String.format("\\u%04x", (int)c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+        return;
+    }
+
+    //    - Turns an enum constant name such as DISTANCE_EVALUATIONS into distanceEvaluations
+    private static String camelCase(String name) {
+        StringBuilder result = new StringBuilder();
+        boolean upper = false;
+        for( char c : name.toCharArray() ) {
+            if( c == '_' ) {
+                upper = true;
+            } else {
+                result.append(upper ? c : Character.toLowerCase(c));
+                upper = false;
+            }
+        }
+        return result.toString();
+    }
+
+    //    - Returns the CPU time of the current thread in nanoseconds, or -1 if the VM does not measure it
+    private static long threadCpuNanos() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    //    - Returns the bytes allocated so far by the current thread, or -1 if the VM does not measure them
+    private static long threadAllocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if( threads instanceof com.sun.management.ThreadMXBean ) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)threads;
+            if( hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled() ) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    // Timer
+    //
+    // One run of a phase, from start to close. The shared NOOP timer
+    // (with no metrics) records nothing.
+    public static class Timer implements AutoCloseable {
+        private final BuildMetrics metrics;     // Metrics the run is added to, or null
+        private final Phase phase;              // Phase being timed
+        private final BuildPhaseEvent event;    // JFR event of the run, or null
+        private final long startWall;           // nanoTime at the start
+        private final long startCpu;            // Thread CPU time at the start
+        private final long startAllocated;      // Thread allocation at the start
+
+        //    - Starts timing phase for metrics (if not null) and for JFR (if events are recorded)
+        private Timer(BuildMetrics metrics, Phase phase, String input) {
+            this.metrics = metrics;
+            this.phase = phase;
+            if( phase != null && EVENT_TYPE.isEnabled() ) {
+                this.event = new BuildPhaseEvent();
+                this.event.phase = phase.name();
+                this.event.input = input;
+                this.event.begin();
+            } else {
+                this.event = null;
+            }
+            boolean measure = (metrics != null && metrics.enabled);
+            this.startCpu = measure ? threadCpuNanos() : 0;
+            this.startAllocated = measure ? threadAllocatedBytes() : 0;
+            this.startWall = measure ? System.nanoTime() : 0;
+            return;
+        }
+
+        // close
+        // Pre-conditions:
+        //        - The timer is closed at most once, on the thread that started it
+        // Post-conditions:
+        //        - The run is added to its phase and its JFR event committed
+        public void close() {
+            if( this.metrics != null && this.metrics.enabled ) {
+                long wall = System.nanoTime() - this.startWall;
+                long cpu = (this.startCpu < 0) ? -1 : threadCpuNanos() - this.startCpu;
+                long allocated = (this.startAllocated < 0) ? -1 : threadAllocatedBytes() - this.startAllocated;
+                this.metrics.record(this.phase, wall, cpu, allocated);
+            }
+            if( this.event != null ) {
+                this.event.commit();
+            }
+            return;
+        }
+    }
+}
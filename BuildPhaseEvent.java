@@ -0,0 +1,31 @@
+/*
+ * BuildPhaseEvent.java
+ *
+ * A Java Flight Recorder event for one phase of a tree build (see
+ * BuildMetrics.Phase), so recordings show the phases next to the GC,
+ * allocation and lock events of the same run. The event duration is the
+ * phase's wall time. Like other custom events it is enabled by default,
+ * so any recording picks it up:
+ *
+ *   java -XX:StartFlightRecording:filename=build.jfr Driver ...
+ *   jfr print --events phylo.BuildPhase build.jfr
+ *
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("phylo.BuildPhase")
+@Label("Tree Build Phase")
+@Category("Phylogenetic Trees")
+@Description("One phase of building a phylogenetic tree")
+public class BuildPhaseEvent extends Event {
+    @Label("Phase")
+    String phase;               // Name of the BuildMetrics.Phase
+
+    @Label("Input")
+    String input;               // Input file of the build, or null
+}
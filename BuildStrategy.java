@@ -0,0 +1,29 @@
+/* 
+ * BuildStrategy.java
+ *
+ * Names the clustering algorithms that PhyloTree can use to turn the
+ * pairwise distances between species into a tree.
+ *
+ */
+
+public enum BuildStrategy {
+    // Average-linkage (UPGMA) clustering that rescans every pair of trees
+    // for the closest one before each merge: O(n^3)
+    UPGMA,
+
+    // Average-linkage (UPGMA) clustering that keeps the nearest neighbor of
+    // every tree instead of rescanning all pairs: the same merges as UPGMA, in
+    // the same order and with the same ties, so the same tree, in O(n^2) time
+    // unless many trees keep losing their neighbor (O(n^3) at worst)
+    UPGMA_NN_CHAIN,
+
+    // Neighbor joining, which does not assume a molecular clock: O(n^3) in the
+    // worst case, with most rows of Q pruned and the rest searched in parallel
+    // (see NeighborJoining)
+    NEIGHBOR_JOINING,
+
+    // Approximate average linkage for alignments too large for all pairs:
+    // distances only between the pairs MinHash sketches find similar, every
+    // other pair at one fill distance (see SparseDistances and SparseUpgma)
+    UPGMA_SKETCH
+}
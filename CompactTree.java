@@ -0,0 +1,419 @@
+/* 
+ * CompactTree.java
+ *
+ * Stores a strictly binary phylogenetic tree as parallel arrays indexed by
+ * node id, instead of one PhyloTreeNode object per node:
+ *
+ *   parent[id], left[id], right[id]   ids of the neighbours, or NONE
+ *   branch[id]                        edge weight from the node to each child (0 for leaves)
+ *   leafCount[id]                     number of leaves below the node
+ *   species[id]                       the species of a leaf, whose name is its label
+ *   firstLeaf[id]                     leftmost leaf below the node
+ *   labelHash[id], labelLength[id]    String.hashCode and length of the node's label
+ *
+ * Nodes are appended with addLeaf and addInternal while a tree is being
+ * built, and insertAbove splices a new leaf into a built tree. Other
+ * callers only read it; node(id) hands out a read-only PhyloTreeNode
+ * view of a node for code that works with linked nodes.
+ * Views are created on first use and cached, so each node has exactly
+ * one view and views can be compared with ==.
+ *
+ * The label of a non-terminal is the concatenation of the labels of its
+ * leaves from left to right. It is never stored: only its hash and
+ * length are, composed from the children's in constant time using
+ * hash(a + b) = hash(a) * 31^length(b) + hash(b). getLabel builds the
+ * string on demand, while compareLabels and labelEquals walk the leaf
+ * names without building it, so the memory and hashing cost of a
+ * non-terminal does not depend on the size of its subtree.
+ *
+ */
+
+import java.util.Arrays;
+
+public class CompactTree {
+    public static final int NONE = -1;
+
+    private int size;                     // Number of nodes in use
+    private int root;                     // Id of the root, or NONE for an empty tree
+    private int[] parent;                 // Parent of each node
+    private int[] left;                   // Left child of each node
+    private int[] right;                  // Right child of each node
+    private double[] branch;              // Edge weight from each node to its children
+    private int[] leafCount;              // Leaves in the subtree of each node
+    private int[] firstLeaf;              // Leftmost leaf in the subtree of each node
+    private int[] labelHash;              // String.hashCode of the label of each node
+    private int[] labelPower;             // 31 raised to the length of the label of each node, modulo 2^32
+    private long[] labelLength;           // Length of the label of each node
+    private Species[] species;            // Species of each leaf (null for non-terminals)
+    private PhyloTreeNode[] views;        // Cached PhyloTreeNode view of each node
+
+    // CONSTRUCTOR
+
+    // CompactTree
+    // Pre-conditions:
+    //      - capacity is the expected number of nodes (2n-1 for n species); the arrays grow if needed
+    // Post-conditions:
+    //      - An empty tree is created
+    public CompactTree(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.root = NONE;
+        this.parent = new int[capacity];
+        this.left = new int[capacity];
+        this.right = new int[capacity];
+        this.branch = new double[capacity];
+        this.leafCount = new int[capacity];
+        this.firstLeaf = new int[capacity];
+        this.labelHash = new int[capacity];
+        this.labelPower = new int[capacity];
+        this.labelLength = new long[capacity];
+        this.species = new Species[capacity];
+        return;
+    }
+
+    // ACCESSORS
+
+    // size
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of nodes
+    public int size() {
+        return this.size;
+    }
+
+    // getRoot
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the id of the root, or NONE if the tree is empty
+    public int getRoot() {
+        return this.root;
+    }
+
+    // getParent, getLeft, getRight
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Return the id of the parent, left child and right child of id, or NONE
+    public int getParent(int id) {
+        return this.parent[id];
+    }
+
+    public int getLeft(int id) {
+        return this.left[id];
+    }
+
+    public int getRight(int id) {
+        return this.right[id];
+    }
+
+    // getDistanceToChild
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Returns the edge weight from id to each of its children (0 for leaves)
+    public double getDistanceToChild(int id) {
+        return this.branch[id];
+    }
+
+    // getNumLeafs
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Returns the number of leaves in the subtree rooted at id
+    public int getNumLeafs(int id) {
+        return this.leafCount[id];
+    }
+
+    // getLabel
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Returns the label of id; for a non-terminal it is built from the
+    //          leaf names on every call, which takes time linear in its length
+    public String getLabel(int id) {
+        if( this.species[id] != null ) {
+            return this.species[id].getName();
+        }
+        StringBuilder label = new StringBuilder((int)Math.min(this.labelLength[id], Integer.MAX_VALUE - 8));
+        for( int leaf = this.firstLeaf[id]; leaf != NONE; leaf = nextLeaf(leaf, id) ) {
+            label.append(this.species[leaf].getName());
+        }
+        return label.toString();
+    }
+
+    // getLabelHashCode
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Returns getLabel(id).hashCode(), without building the label
+    public int getLabelHashCode(int id) {
+        return this.labelHash[id];
+    }
+
+    // getLabelLength
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Returns getLabel(id).length(), without building the label
+    public long getLabelLength(int id) {
+        return this.labelLength[id];
+    }
+
+    // compareLabels
+    // Pre-conditions:
+    //        - id1 and id2 are node ids
+    // Post-conditions:
+    //        - Returns a negative number, zero or a positive number as the label of id1
+    //          is lexicographically less than, equal to or greater than the label of id2,
+    //          like String.compareTo, reading only as far as the first difference
+    public int compareLabels(int id1, int id2) {
+        int leaf1 = this.firstLeaf[id1];
+        int leaf2 = this.firstLeaf[id2];
+        String name1 = this.species[leaf1].getName();
+        String name2 = this.species[leaf2].getName();
+        int pos1 = 0;
+        int pos2 = 0;
+        while( true ) {
+            // moves on to the next non-empty leaf name once one is used up
+            while( pos1 == name1.length() && (leaf1 = nextLeaf(leaf1, id1)) != NONE ) {
+                name1 = this.species[leaf1].getName();
+                pos1 = 0;
+            }
+            while( pos2 == name2.length() && (leaf2 = nextLeaf(leaf2, id2)) != NONE ) {
+                name2 = this.species[leaf2].getName();
+                pos2 = 0;
+            }
+            if( leaf1 == NONE || leaf2 == NONE ) {
+                // one label is a prefix of the other
+                return Long.compare(this.labelLength[id1], this.labelLength[id2]);
+            }
+            int common = Math.min(name1.length() - pos1, name2.length() - pos2);
+            for( int k = 0; k < common; k++ ) {
+                char c1 = name1.charAt(pos1 + k);
+                char c2 = name2.charAt(pos2 + k);
+                if( c1 != c2 ) {
+                    return c1 - c2;
+                }
+            }
+            pos1 += common;
+            pos2 += common;
+        }
+    }
+
+    // labelEquals
+    // Pre-conditions:
+    //        - id is a node id and label is not null
+    // Post-conditions:
+    //        - Returns true if the label of id equals label, without building the label of id
+    public boolean labelEquals(int id, String label) {
+        if( this.labelLength[id] != label.length() || this.labelHash[id] != label.hashCode() ) {
+            return false;
+        }
+        int pos = 0;
+        for( int leaf = this.firstLeaf[id]; leaf != NONE; leaf = nextLeaf(leaf, id) ) {
+            String name = this.species[leaf].getName();
+            if( !label.regionMatches(pos, name, 0, name.length()) ) {
+                return false;
+            }
+            pos += name.length();
+        }
+        return true;
+    }
+
+    // getFirstLeaf
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Returns the leftmost leaf in the subtree rooted at id
+    public int getFirstLeaf(int id) {
+        return this.firstLeaf[id];
+    }
+
+    // nextLeaf
+    // Pre-conditions:
+    //        - leaf is a leaf in the subtree rooted at id
+    // Post-conditions:
+    //        - Returns the next leaf of that subtree from left to right, or NONE after the last one
+    public int nextLeaf(int leaf, int id) {
+        int current = leaf;
+        while( current != id && this.right[this.parent[current]] == current ) {
+            current = this.parent[current];
+        }
+        if( current == id ) {
+            return NONE;
+        }
+        return this.firstLeaf[this.right[this.parent[current]]];
+    }
+
+    // getSpecies
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Returns the species of a leaf, or null for a non-terminal
+    public Species getSpecies(int id) {
+        return this.species[id];
+    }
+
+    // isLeaf
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Returns true if id has no children
+    public boolean isLeaf(int id) {
+        return this.left[id] == NONE && this.right[id] == NONE;
+    }
+
+    // node
+    // Pre-conditions:
+    //        - id is a node id, or NONE
+    // Post-conditions:
+    //        - Returns the PhyloTreeNode view of id (null for NONE)
+    public PhyloTreeNode node(int id) {
+        if( id == NONE ) {
+            return null;
+        }
+        if( this.views == null ) {
+            this.views = new PhyloTreeNode[this.parent.length];
+        }
+        PhyloTreeNode view = this.views[id];
+        if( view == null ) {
+            view = new CompactTreeNode(this, id);
+            this.views[id] = view;
+        }
+        return view;
+    }
+
+    // MODIFIERS
+
+    // addLeaf
+    // Pre-conditions:
+    //        - species is the species held by the new leaf
+    // Post-conditions:
+    //        - A parentless leaf labelled with the species name is added; returns its id
+    public int addLeaf(Species species) {
+        int id = allocate();
+        String name = species.getName();
+        int power = 1;
+        for( int k = 0; k < name.length(); k++ ) {
+            power *= 31;
+        }
+        this.species[id] = species;
+        this.leafCount[id] = 1;
+        this.firstLeaf[id] = id;
+        this.labelHash[id] = name.hashCode();
+        this.labelPower[id] = power;
+        this.labelLength[id] = name.length();
+        return id;
+    }
+
+    // addInternal
+    // Pre-conditions:
+    //        - leftChild and rightChild are ids of parentless nodes
+    //        - distanceToChild is the edge weight from the new node to each child
+    // Post-conditions:
+    //        - A parentless non-terminal joining the two children is added; returns its id
+    //        - Its label is the label of leftChild followed by the label of rightChild
+    public int addInternal(int leftChild, int rightChild, double distanceToChild) {
+        int id = allocate();
+        this.left[id] = leftChild;
+        this.right[id] = rightChild;
+        this.branch[id] = distanceToChild;
+        refresh(id);
+        this.parent[leftChild] = id;
+        this.parent[rightChild] = id;
+        return id;
+    }
+
+    // insertAbove
+    // Pre-conditions:
+    //        - sibling is a node of the tree, and leaf a parentless leaf
+    //        - distanceToChild is the edge weight from the new node to each child
+    // Post-conditions:
+    //        - A non-terminal joining sibling and leaf is put in the place of sibling (becoming the root
+    //          if sibling was the root); returns its id
+    //        - The leaf counts and labels of the ancestors are brought up to date, and at each of them the child
+    //          with the smaller label is on the left again, as addInternal callers arrange when building
+    public int insertAbove(int sibling, int leaf, double distanceToChild) {
+        int above = this.parent[sibling];
+        int id = allocate();
+        if( compareLabels(sibling, leaf) <= 0 ) {
+            this.left[id] = sibling;
+            this.right[id] = leaf;
+        } else {
+            this.left[id] = leaf;
+            this.right[id] = sibling;
+        }
+        this.branch[id] = distanceToChild;
+        this.parent[sibling] = id;
+        this.parent[leaf] = id;
+        this.parent[id] = above;
+        refresh(id);
+        if( above == NONE ) {
+            this.root = id;
+            return id;
+        }
+        if( this.left[above] == sibling ) {
+            this.left[above] = id;
+        } else {
+            this.right[above] = id;
+        }
+        for( int a=above; a!=NONE; a=this.parent[a] ) {
+            if( compareLabels(this.left[a], this.right[a]) > 0 ) {
+                int t = this.left[a];
+                this.left[a] = this.right[a];
+                this.right[a] = t;
+            }
+            refresh(a);
+        }
+        return id;
+    }
+
+    // setRoot
+    // Pre-conditions:
+    //        - id is the id of the parentless node that holds the whole tree
+    // Post-conditions:
+    //        - id is the root of the tree
+    public void setRoot(int id) {
+        this.root = id;
+        return;
+    }
+
+    //    - id is a non-terminal whose children are up to date
+    //    - Recomputes the leaf count, leftmost leaf and label hash and length of id from its children
+    private void refresh(int id) {
+        int l = this.left[id];
+        int r = this.right[id];
+        this.leafCount[id] = this.leafCount[l] + this.leafCount[r];
+        this.firstLeaf[id] = this.firstLeaf[l];
+        this.labelHash[id] = this.labelHash[l] * this.labelPower[r] + this.labelHash[r];
+        this.labelPower[id] = this.labelPower[l] * this.labelPower[r];
+        this.labelLength[id] = this.labelLength[l] + this.labelLength[r];
+        return;
+    }
+
+    //    - Reserves the next id, growing the arrays if they are full
+    private int allocate() {
+        if( this.size == this.parent.length ) {
+            int capacity = this.parent.length * 2;
+            this.parent = Arrays.copyOf(this.parent, capacity);
+            this.left = Arrays.copyOf(this.left, capacity);
+            this.right = Arrays.copyOf(this.right, capacity);
+            this.branch = Arrays.copyOf(this.branch, capacity);
+            this.leafCount = Arrays.copyOf(this.leafCount, capacity);
+            this.firstLeaf = Arrays.copyOf(this.firstLeaf, capacity);
+            this.labelHash = Arrays.copyOf(this.labelHash, capacity);
+            this.labelPower = Arrays.copyOf(this.labelPower, capacity);
+            this.labelLength = Arrays.copyOf(this.labelLength, capacity);
+            this.species = Arrays.copyOf(this.species, capacity);
+            if( this.views != null ) {
+                this.views = Arrays.copyOf(this.views, capacity);
+            }
+        }
+        int id = this.size++;
+        this.parent[id] = NONE;
+        this.left[id] = NONE;
+        this.right[id] = NONE;
+        return id;
+    }
+}
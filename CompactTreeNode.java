@@ -0,0 +1,92 @@
+/* 
+ * CompactTreeNode.java
+ *
+ * A PhyloTreeNode that reads everything from one node of a CompactTree,
+ * so callers that walk linked nodes keep working on array-backed trees.
+ * Instances are created by CompactTree.node; they hold no tree data of
+ * their own. Views are read-only: setParent, the one mutator inherited
+ * from PhyloTreeNode, is not supported.
+ *
+ */
+
+public class CompactTreeNode extends PhyloTreeNode {
+    private final CompactTree tree;   // Tree that holds the node
+    private final int id;             // Id of the node in tree
+
+    // CONSTRUCTOR
+
+    // CompactTreeNode
+    // Pre-conditions:
+    //      - id is a node of tree
+    // Post-conditions:
+    //      - A view of the node is created
+    CompactTreeNode(CompactTree tree, int id) {
+        super(null, null, null, null, 0);
+        this.tree = tree;
+        this.id = id;
+    }
+
+    // ACCESSORS
+
+    // getTree
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the tree holding this node
+    public CompactTree getTree() {
+        return this.tree;
+    }
+
+    // getId
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the id of this node in its tree
+    public int getId() {
+        return this.id;
+    }
+
+    public PhyloTreeNode getParent() {
+        return this.tree.node(this.tree.getParent(this.id));
+    }
+
+    public PhyloTreeNode getLeftChild() {
+        return this.tree.node(this.tree.getLeft(this.id));
+    }
+
+    public PhyloTreeNode getRightChild() {
+        return this.tree.node(this.tree.getRight(this.id));
+    }
+
+    public String getLabel() {
+        return this.tree.getLabel(this.id);
+    }
+
+    public Species getSpecies() {
+        return this.tree.getSpecies(this.id);
+    }
+
+    public double getDistanceToChild() {
+        return this.tree.getDistanceToChild(this.id);
+    }
+
+    public int getNumLeafs() {
+        return this.tree.getNumLeafs(this.id);
+    }
+
+    public boolean isLeaf() {
+        return this.tree.isLeaf(this.id);
+    }
+
+    // MODIFIER
+
+    // setParent
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Always throws UnsupportedOperationException: views are read-only, since re-parenting one node
+    //          would leave the leaf counts, labels and the indexes of its PhyloTree stale
+    public void setParent(PhyloTreeNode parent) {
+        throw new UnsupportedOperationException("nodes of a CompactTree are read-only");
+    }
+}
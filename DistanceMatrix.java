@@ -0,0 +1,179 @@
+/*
+ * DistanceMatrix.java
+ *
+ * Defines a symmetric matrix of distances between clusters, stored as a
+ * condensed upper triangle: the pairs (i,j), i < j, row by row. Clusters
+ * are identified by integer slots 0..size-1; the diagonal is not stored.
+ *
+ * Subclasses only decide where the triangle lives: HeapDistanceMatrix
+ * keeps it in a primitive array, MappedDistanceMatrix in memory-mapped
+ * file segments for matrices larger than the heap. Positions are longs,
+ * so a mapped matrix may hold more than 2^31 pairs.
+ *
+ * Row i of the triangle is contiguous; the entries above it, (x,i) for
+ * x < i, are one per row. getRow reads both parts in increasing position
+ * order, copying the contiguous part in bulk, which is the access pattern
+ * a disk-backed matrix handles best.
+ *
+ */
+
+import java.io.*;
+
+public abstract class DistanceMatrix implements Closeable {
+    private int size;             // Number of slots (rows) in the matrix
+
+    // CONSTRUCTOR
+
+    // DistanceMatrix
+    // Pre-conditions:
+    //      - size is the number of slots
+    // Post-conditions:
+    //      - A matrix of size slots is created
+    protected DistanceMatrix(int size) {
+        if( size < 0 ) {
+            throw new IllegalArgumentException("size must not be negative: " + size);
+        }
+        this.size = size;
+        return;
+    }
+
+    // ACCESSORS
+
+    // size
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of slots in the matrix
+    public int size() {
+        return this.size;
+    }
+
+    // get
+    // Pre-conditions:
+    //        - i and j are distinct slots
+    // Post-conditions:
+    //        - Returns the distance between slots i and j
+    public double get(int i, int j) {
+        return read(index(i, j));
+    }
+
+    // getRow
+    // Pre-conditions:
+    //        - i is a slot, and into has at least size() elements
+    // Post-conditions:
+    //        - into[j] holds the distance between slots i and j for every j != i, and into[i] is 0
+    //        - The column part is read one row apart per entry, so it touches up to i pages of a
+    //          mapped matrix (see MappedDistanceMatrix)
+    public void getRow(int i, double[] into) {
+        for( int x=0; x<i; x++ ) {
+            into[x] = read(condensedIndex(x, i, this.size));
+        }
+        into[i] = 0;
+        if( i + 1 < this.size ) {
+            readRange(condensedIndex(i, i+1, this.size), into, i+1, this.size - i - 1);
+        }
+        return;
+    }
+
+    // MODIFIERS
+
+    // set
+    // Pre-conditions:
+    //        - i and j are distinct slots
+    // Post-conditions:
+    //        - The distance between slots i and j (and j and i) is value
+    public void set(int i, int j, double value) {
+        write(index(i, j), value);
+        return;
+    }
+
+    // compact
+    // Pre-conditions:
+    //        - slots[0..count) are distinct slots in increasing order
+    // Post-conditions:
+    //        - The matrix keeps only those slots, renumbered 0..count-1 in the same order
+    //        - Done in place: each kept pair moves to an equal or earlier position, and pairs
+    //          are moved in increasing order, so no pair is overwritten before it is read
+    public void compact(int[] slots, int count) {
+        long position = 0;
+        for( int a=0; a<count; a++ ) {
+            long base = condensedIndex(slots[a], slots[a], this.size) + 1;
+            for( int b=a+1; b<count; b++ ) {
+                write(position++, read(base + (slots[b] - slots[a] - 1)));
+            }
+        }
+        this.size = count;
+        return;
+    }
+
+    // close
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Releases any storage held outside the heap; the matrix must not be used afterwards
+    public void close() throws IOException {
+        return;
+    }
+
+    // STORAGE
+
+    //    - position is a position in the condensed triangle
+    //    - Returns the distance stored at position
+    protected abstract double read(long position);
+
+    //    - position is a position in the condensed triangle
+    //    - Stores value at position
+    protected abstract void write(long position, double value);
+
+    //    - Copies length distances starting at position into into[offset..offset+length)
+    //    - Subclasses override this with a bulk copy
+    protected void readRange(long position, double[] into, int offset, int length) {
+        for( int k=0; k<length; k++ ) {
+            into[offset + k] = read(position + k);
+        }
+        return;
+    }
+
+    //    - Returns the position of the pair {i,j}
+    private long index(int i, int j) {
+        if( i > j ) {
+            int t = i;
+            i = j;
+            j = t;
+        }
+        return condensedIndex(i, j, this.size);
+    }
+
+    // STATIC
+
+    // create
+    // Pre-conditions:
+    //        - size is the number of slots
+    //        - storage chooses where the matrix is kept; AUTO picks the heap when the matrix fits
+    //          comfortably in it and memory-mapped files otherwise
+    //        - directory is where memory-mapped files are created (null for the system temporary directory)
+    // Post-conditions:
+    //        - Returns a matrix with every off-diagonal distance set to 0; the caller closes it
+    //        - If the files of a memory-mapped matrix cannot be created, an IOException is thrown
+    public static DistanceMatrix create(int size, DistanceStorage storage, File directory) throws IOException {
+        long length = (long)size * (size - 1) / 2;
+        boolean mapped = (storage == DistanceStorage.MAPPED);
+        if( storage == DistanceStorage.AUTO ) {
+            mapped = !HeapDistanceMatrix.fits(length)
+                     || 8 * length > Runtime.getRuntime().maxMemory() / 2;
+        }
+        if( mapped ) {
+            return new MappedDistanceMatrix(size, directory);
+        }
+        return new HeapDistanceMatrix(size);
+    }
+
+    // condensedIndex
+    // Pre-conditions:
+    //        - 0 <= i < j < n
+    // Post-conditions:
+    //        - Returns the position of pair (i,j) in a condensed upper triangle of n slots
+    public static long condensedIndex(int i, int j, int n) {
+        return (long)i * (2L * n - i - 1) / 2 + (j - i - 1);
+    }
+}
@@ -0,0 +1,137 @@
+/* 
+ * DistanceMatrixWriter.java
+ *
+ * Writes a matrix of evolutionary distances between species, either as
+ * the text listing produced by Driver or in a compact binary format.
+ *
+ * Text: one line "EvDistance(label1,label2) = d.dd" per ordered pair.
+ * Lines are assembled in a reused buffer and the numbers are formatted by
+ * FixedPrecision, so writing does not allocate per line.
+ *
+ * Binary (all numbers little-endian, so the file can be memory-mapped):
+ *
+ *   bytes  0-3   magic "PHYD"
+ *   int32        format version (1)
+ *   int32        n, the number of species
+ *   n times      int32 byte length, then the UTF-8 bytes of the label
+ *   0-7 bytes    zero padding, so the matrix starts at a multiple of 8
+ *   float32      the upper triangle, row by row: (0,1), (0,2), ..., (0,n-1), (1,2), ...
+ *
+ * The diagonal is zero and the matrix is symmetric, so neither is stored.
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+public class DistanceMatrixWriter {
+    public static final int BINARY_VERSION = 1;
+    private static final byte[] BINARY_MAGIC = { 'P', 'H', 'Y', 'D' };
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // STATIC
+
+    // writeText
+    // Pre-conditions:
+    //        - out is an open Writer
+    //        - labels[i] is the label of row and column i of matrix, a square matrix
+    //        - decimals is the number of decimals printed (Driver uses 2)
+    // Post-conditions:
+    //        - Every ordered pair has been written as "EvDistance(label1,label2) = value",
+    //          with the value formatted like String.format("%.<decimals>f")
+    //        - out has been flushed but not closed
+    public static void writeText(Writer out, String[] labels, double[][] matrix, int decimals) throws IOException {
+        StringBuilder line = new StringBuilder(BUFFER_SIZE + 256);
+        char[] chars = new char[BUFFER_SIZE + 256];
+        for( int i=0; i<labels.length; i++ ) {
+            double[] row = matrix[i];
+            for( int j=0; j<labels.length; j++ ) {
+                line.append("EvDistance(").append(labels[i]).append(',').append(labels[j]).append(") = ");
+                FixedPrecision.append(line, row[j], decimals).append('\n');
+                if( line.length() >= BUFFER_SIZE ) {
+                    chars = flush(out, line, chars);
+                }
+            }
+        }
+        flush(out, line, chars);
+        out.flush();
+        return;
+    }
+
+    // writeBinary
+    // Pre-conditions:
+    //        - file is the path to write
+    //        - labels[i] is the label of row and column i of matrix, a square matrix
+    // Post-conditions:
+    //        - file holds the matrix in the binary format described above
+    public static void writeBinary(File file, String[] labels, double[][] matrix) throws IOException {
+        try( FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                                                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING) ) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(BINARY_MAGIC);
+            buffer.putInt(BINARY_VERSION);
+            buffer.putInt(labels.length);
+            long position = 12;
+            for( String label : labels ) {
+                position += putBytes(channel, buffer, label.getBytes(StandardCharsets.UTF_8));
+            }
+            ensureRoom(channel, buffer, 8);
+            while( position % 8 != 0 ) {
+                buffer.put((byte)0);
+                position++;
+            }
+            for( int i=0; i<labels.length; i++ ) {
+                double[] row = matrix[i];
+                for( int j=i+1; j<labels.length; j++ ) {
+                    ensureRoom(channel, buffer, 4);
+                    buffer.putFloat((float)row[j]);
+                }
+            }
+            buffer.flip();
+            while( buffer.hasRemaining() ) {
+                channel.write(buffer);
+            }
+        }
+        return;
+    }
+
+    //    - Writes the contents of line to out through chars, empties line, and returns the (possibly grown) char array
+    private static char[] flush(Writer out, StringBuilder line, char[] chars) throws IOException {
+        if( chars.length < line.length() ) {
+            chars = new char[line.length()];
+        }
+        line.getChars(0, line.length(), chars, 0);
+        out.write(chars, 0, line.length());
+        line.setLength(0);
+        return chars;
+    }
+
+    //    - Writes bytes through buffer to channel, preceded by its int32 length; returns the number of bytes written
+    //    - Shared with TreeSnapshot, whose names and residues are stored the same way
+    static long putBytes(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+        ensureRoom(channel, buffer, 4);
+        buffer.putInt(bytes.length);
+        for( int offset=0; offset<bytes.length; ) {
+            ensureRoom(channel, buffer, 1);
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+        return 4 + bytes.length;
+    }
+
+    //    - Drains buffer to channel if it has fewer than bytes bytes of room left
+    static void ensureRoom(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if( buffer.remaining() < bytes ) {
+            buffer.flip();
+            while( buffer.hasRemaining() ) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/* 
+ * DistanceMetric.java
+ *
+ * Turns a pair of aligned species into the distance PhyloTree clusters
+ * on. A metric works from two counts of the pair, the columns compared
+ * and the columns where the residues differ, which Species.countSites
+ * gathers in one allocation-free pass over the bit-planes of the
+ * sequences; SitePatterns gathers the same counts from the compressed
+ * alignment. StandardDistanceMetric holds the metrics the program ships
+ * with; the default is the p-distance of Species.distance.
+ *
+ * Distances must not depend on the order of the pair, and must grow with
+ * the fraction of differing columns, so identical sequences are at the
+ * smallest distance.
+ *
+ */
+
+public interface DistanceMetric {
+    // getName
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns a short lower-case name of the metric, used on the command line and in
+    //          PhyloTreeOptions.getFingerprint, so two metrics giving different distances have different names
+    String getName();
+
+    // deletesGaps
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns true if the columns where either species has a gap are left out of the pair
+    //          (pairwise deletion, see Species.isGap), false if every column is compared
+    boolean deletesGaps();
+
+    // distance
+    // Pre-conditions:
+    //        - numSites is the number of columns compared, and is positive
+    //        - numDiffs is the number of those where the residues differ
+    // Post-conditions:
+    //        - Returns the distance of a pair with those counts, a finite number that is not negative
+    double distance(int numDiffs, int numSites);
+
+    // distance
+    // Pre-conditions:
+    //        - a and b are two non-null Species objects
+    //          whose sequences have already been aligned
+    // Post-conditions:
+    //        - Returns the distance between a and b
+    //        - If the sequences are not the same length, or have no column left to compare, an
+    //          IllegalArgumentException is thrown
+    default double distance(Species a, Species b) {
+        long counts = Species.countSites(a, b, deletesGaps());
+        int numSites = (int)(counts >>> 32);
+        if( numSites == 0 ) {
+            throw new IllegalArgumentException("No columns to compare between " + a.getName() + " and " + b.getName());
+        }
+        return distance((int)counts, numSites);
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * DistanceStorage.java
+ *
+ * Names the places where PhyloTree can keep the pairwise distance matrix
+ * while it builds a tree (see DistanceMatrix).
+ *
+ */
+
+public enum DistanceStorage {
+    // On the heap while the matrix takes at most half of the maximum heap
+    // size, in memory-mapped files otherwise
+    AUTO,
+
+    // On the heap, in a primitive array (up to about 65,000 species)
+    HEAP,
+
+    // In memory-mapped temporary files, for matrices larger than the heap
+    MAPPED
+}
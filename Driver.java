@@ -12,13 +12,48 @@
  *
  * usage:
  *
- * java Driver fastaListFilename outputDir
+ * java Driver [options] fastaListFilename outputDir
  *
  * where the argument is
  * 
  *   fastaListFilename      a plaintext file with one line per FASTA alignment file
  *   outputDir              a directory where the trees and statistics will be written
  *
+ * and the options are
+ *
+ *   -jobs N                build and write up to N trees at once (default 1)
+ *   -threads N             worker threads used inside each tree build
+ *                          (default: all processors, or 1 when -jobs is above 1)
+ *   -binary                also write each distance matrix in binary form, to a
+ *                          .distances.bin file (see DistanceMatrixWriter)
+ *   -gzip                  write each tree gzip-compressed, to a .tree.gz file
+ *                          instead of a .tree file
+ *   -storage NAME          where the distance matrix is kept while building:
+ *                          auto, heap or mapped (see DistanceStorage; default auto)
+ *   -tmpdir DIR            directory for memory-mapped distance matrices
+ *                          (default: the system temporary directory)
+ *   -strategy NAME         clustering algorithm: upgma, upgma_nn_chain,
+ *                          neighbor_joining or upgma_sketch (see BuildStrategy;
+ *                          default upgma)
+ *   -sketch K,SIZE,BANDS   k-mer length, bins and bands of the MinHash sketches
+ *                          of upgma_sketch, which compares only the pairs they
+ *                          find similar: fewer bands are faster and less exact
+ *                          (see MinHashSketch; default 6,128,64)
+ *   -metric NAME           distance between two species: p-distance, poisson,
+ *                          kimura or pairwise-deletion (see StandardDistanceMetric;
+ *                          default p-distance)
+ *   -snapshots DIR         keep a binary snapshot of each tree in DIR (see
+ *                          TreeSnapshot), keyed by the SHA-256 of the FASTA file
+ *                          and the build options; an input with a snapshot is
+ *                          loaded from it instead of being parsed and clustered
+ *   -metrics DIR           write a report of each build to DIR, as a JSON file
+ *                          named after the FASTA file: wall time, CPU time and
+ *                          allocation per phase, and work counters (see BuildMetrics)
+ *
+ * With -jobs above 1 the files are processed concurrently, but the summaries
+ * are still printed to standard output in the order of the list file, and
+ * each output file is the same as in a one-at-a-time run.
+ *
  *
  * Note: This will not work unless your outputDir has already been created!
  *
@@ -29,13 +64,92 @@ public class Driver {
     private static final String slash = "/"; // You may need to change this to "\" on Windows...
 
     public static void main(String[] args) {
-        if( args.length != 2 ) {
+        int jobs = 1;
+        int threads = 0;
+        DistanceStorage storage = DistanceStorage.AUTO;
+        DistanceMetric metric = StandardDistanceMetric.P_DISTANCE;
+        BuildStrategy strategy = BuildStrategy.UPGMA;
+        int[] sketch = null;
+        java.io.File tmpdir = null;
+        java.io.File snapshotDir = null;
+        java.io.File metricsDir = null;
+        boolean binary = false;
+        boolean gzip = false;
+        int argIndex = 0;
+        try {
+            while( argIndex < args.length && args[argIndex].startsWith("-") ) {
+                String option = args[argIndex++];
+                if( option.equals("-binary") ) {
+                    binary = true;
+                    continue;
+                }
+                if( option.equals("-gzip") ) {
+                    gzip = true;
+                    continue;
+                }
+                if( argIndex == args.length ) {
+                    System.err.println("Error: Missing value for option " + option);
+                    System.exit(2);
+                }
+                if( option.equals("-jobs") ) {
+                    jobs = Integer.parseInt(args[argIndex++]);
+                } else if( option.equals("-threads") ) {
+                    threads = Integer.parseInt(args[argIndex++]);
+                } else if( option.equals("-storage") ) {
+                    String name = args[argIndex++];
+                    try {
+                        storage = DistanceStorage.valueOf(name.toUpperCase());
+                    } catch( IllegalArgumentException e ) {
+                        System.err.println("Error: Unknown storage: " + name);
+                        System.exit(2);
+                    }
+                } else if( option.equals("-strategy") ) {
+                    String name = args[argIndex++];
+                    try {
+                        strategy = BuildStrategy.valueOf(name.toUpperCase());
+                    } catch( IllegalArgumentException e ) {
+                        System.err.println("Error: Unknown strategy: " + name);
+                        System.exit(2);
+                    }
+                } else if( option.equals("-sketch") ) {
+                    String[] settings = args[argIndex++].split(",");
+                    if( settings.length != 3 ) {
+                        System.err.println("Error: -sketch takes K,SIZE,BANDS");
+                        System.exit(2);
+                    }
+                    sketch = new int[3];
+                    for( int k=0; k<3; k++ ) {
+                        sketch[k] = Integer.parseInt(settings[k].trim());
+                    }
+                } else if( option.equals("-metric") ) {
+                    String name = args[argIndex++];
+                    metric = StandardDistanceMetric.forName(name);
+                    if( metric == null ) {
+                        System.err.println("Error: Unknown distance metric: " + name);
+                        System.exit(2);
+                    }
+                } else if( option.equals("-tmpdir") ) {
+                    tmpdir = new java.io.File(args[argIndex++]);
+                } else if( option.equals("-snapshots") ) {
+                    snapshotDir = new java.io.File(args[argIndex++]);
+                } else if( option.equals("-metrics") ) {
+                    metricsDir = new java.io.File(args[argIndex++]);
+                } else {
+                    System.err.println("Error: Unknown option " + option);
+                    System.exit(2);
+                }
+            }
+        } catch( NumberFormatException e ) {
+            System.err.println("Error: Option values must be numbers: " + e.getMessage());
+            System.exit(2);
+        }
+        if( args.length - argIndex != 2 || jobs < 1 || threads < 0 ) {
             System.err.println("Error: Wrong number of arguments.");
             System.exit(2);
         }
     
-        String fastaListFilename = args[0];
-        String outputDir         = args[1];
+        String fastaListFilename = args[argIndex];
+        String outputDir         = args[argIndex+1];
         java.util.Scanner input = null;
         java.io.File inputFile = new java.io.File(fastaListFilename);
         try {
@@ -44,47 +158,262 @@ public class Driver {
             System.err.println("Error: Unable to open file " + fastaListFilename);
             System.exit(1);
         }
-
-        int numFiles = 0;
+        java.util.ArrayList<String> fastaFilenames = new java.util.ArrayList<String>();
         while( input.hasNext() ) {
-            String fastaFilename = input.next();
-            numFiles++;
-            System.err.print("\nLoading tree " + numFiles);
+            fastaFilenames.add(input.next());
+        }
+        input.close();
 
-            java.io.File fastaFile = new java.io.File(fastaFilename);
+        PhyloTreeOptions options = new PhyloTreeOptions();
+        options.setDistanceStorage(storage);
+        options.setDistanceMetric(metric);
+        options.setBuildStrategy(strategy);
+        if( sketch != null ) {
+            try {
+                options.setSketch(sketch[0], sketch[1], sketch[2]);
+            } catch( IllegalArgumentException e ) {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(2);
+            }
+        }
+        options.setTempDirectory(tmpdir);
+        if( threads > 0 ) {
+            options.setNumThreads(threads);
+        } else if( jobs > 1 ) {
+            options.setNumThreads(1);
+        }
+
+        int numFailures = 0;
+        if( jobs == 1 ) {
+            // the printed tree is streamed to standard output, which is flushed after every file
+            java.io.Writer stdout = new java.io.BufferedWriter(new java.io.OutputStreamWriter(System.out), 1 << 16);
+            for( int i=0; i<fastaFilenames.size(); i++ ) {
+                try {
+                    processFile(i+1, fastaFilenames.get(i), outputDir, options, snapshotDir, metricsDir, binary, gzip, stdout, System.err);
+                } catch( java.io.IOException e ) {
+                    System.err.println("Error: " + e.getMessage());
+                    numFailures++;
+                } finally {
+                    try {
+                        stdout.flush();
+                    } catch( java.io.IOException e ) {
+                        System.err.println("Error: Unable to write to standard output: " + e.getMessage());
+                        numFailures++;
+                    }
+                }
+            }
+        } else {
+            numFailures = processConcurrently(fastaFilenames, outputDir, options, snapshotDir, metricsDir,
+                                              binary, gzip, jobs);
+        }
+        if( numFailures > 0 ) {
+            System.exit(1);
+        }
+        return;
+    }
 
-            PhyloTree tree = new PhyloTree(fastaFilename,PRINTING_DEPTH);
-            System.err.println(" done");
+    // processConcurrently
+    // Pre-conditions:
+    //        - fastaFilenames lists the FASTA files to process, outputDir exists
+    //        - snapshotDir is the directory of tree snapshots, or null to always build the trees
+    //        - metricsDir is the directory of build reports, or null for none
+    //        - binary is true if the distance matrices are also written in binary form
+    //        - gzip is true if the trees are written gzip-compressed
+    //        - jobs is the maximum number of files processed at once
+    // Post-conditions:
+    //        - Every file has been processed on a pool of jobs threads
+    //        - The summary of each file is printed to standard output in list order,
+    //          as soon as it and every file before it are done
+    //        - Returns the number of files that could not be processed
+    private static int processConcurrently(java.util.List<String> fastaFilenames, final String outputDir,
+                                           final PhyloTreeOptions options, final java.io.File snapshotDir,
+                                           final java.io.File metricsDir,
+                                           final boolean binary, final boolean gzip,
+                                           int jobs) {
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(jobs);
+        java.util.ArrayList<java.util.concurrent.Future<String>> summaries = new java.util.ArrayList<java.util.concurrent.Future<String>>();
+        for( int i=0; i<fastaFilenames.size(); i++ ) {
+            final int number = i+1;
+            final String fastaFilename = fastaFilenames.get(i);
+            summaries.add(pool.submit(new java.util.concurrent.Callable<String>() {
+                public String call() throws java.io.IOException {
+                    StringBuilder summary = new StringBuilder();
+                    processFile(number, fastaFilename, outputDir, options, snapshotDir, metricsDir, binary, gzip, summary, null);
+                    return summary.toString();
+                }
+            }));
+        }
+        pool.shutdown();
 
-            java.io.File treeOutFile = new java.io.File(outputDir + slash + fastaFile.getName() + ".tree");
-            java.io.File distOutFile = new java.io.File(outputDir + slash + fastaFile.getName() + ".distances");
-            java.io.PrintStream treeOut = null;
-            java.io.PrintStream distOut = null;
+        int numFailures = 0;
+        for( int i=0; i<summaries.size(); i++ ) {
             try {
-                treeOut = new java.io.PrintStream(treeOutFile);
-                distOut = new java.io.PrintStream(distOutFile);
-            } catch( java.io.FileNotFoundException e ) {
-                System.err.println("Error: Unable to open output file for writing" + e);
-                System.exit(1);
+                String summary = summaries.get(i).get();
+                System.err.println("\nLoading tree " + (i+1) + " done");
+                System.out.print(summary);
+            } catch( java.util.concurrent.ExecutionException e ) {
+                System.err.println("Error: " + e.getCause().getMessage());
+                numFailures++;
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                return numFailures + summaries.size() - i;
+            }
+        }
+        return numFailures;
+    }
+
+    // processFile
+    // Pre-conditions:
+    //        - number is the 1-based position of fastaFilename in the list file
+    //        - outputDir exists and options holds the build settings
+    //        - snapshotDir is the directory of tree snapshots, or null to always build the tree
+    //        - metricsDir is the directory of build reports, or null for none
+    //        - binary is true if the distance matrix is also written to a .distances.bin file
+    //        - gzip is true if the tree is written to a gzip-compressed .tree.gz file instead of a .tree file
+    //        - out receives the summary of the tree; progress receives progress messages (or is null)
+    // Post-conditions:
+    //        - The tree for fastaFilename has been built (or loaded from its snapshot), and its .tree and .distances files written to outputDir
+    //          through buffered writers
+    //        - The printed tree and its statistics have been appended to out
+    //        - If metricsDir is not null, the report of the build has been written there
+    //        - If the file cannot be loaded, its sequences cannot be compared (not aligned, say), or an output file
+    //          cannot be written, an IOException is thrown
+    private static void processFile(int number, String fastaFilename, String outputDir, PhyloTreeOptions options,
+                                    java.io.File snapshotDir, java.io.File metricsDir, boolean binary, boolean gzip, Appendable out, java.io.PrintStream progress) throws java.io.IOException {
+        if( progress != null ) {
+            progress.print("\nLoading tree " + number);
+        }
+
+        java.io.File fastaFile = new java.io.File(fastaFilename);
+        BuildMetrics metrics = (metricsDir == null) ? BuildMetrics.DISABLED : new BuildMetrics(fastaFilename);
+
+        PhyloTree tree = null;
+        try {
+            if( snapshotDir == null ) {
+                tree = new PhyloTree(fastaFilename,PRINTING_DEPTH,options,metrics);
+            } else {
+                tree = loadOrBuild(fastaFile, snapshotDir, options, metrics, progress);
             }
+        } catch( java.io.IOException e ) {
+            throw new java.io.IOException("Unable to load file " + fastaFilename + ": " + e.getMessage(), e);
+        } catch( java.io.UncheckedIOException e ) {
+            throw new java.io.IOException("Unable to build the tree of " + fastaFilename + ": " + e.getMessage(), e.getCause());
+        } catch( IllegalArgumentException e ) {
+            throw new java.io.IOException("Unable to build the tree of " + fastaFilename + ": " + e.getMessage(), e);
+        }
+        if( progress != null ) {
+            progress.println(" done");
+        }
 
-            System.out.print(tree);
-            treeOut.print(tree.toTreeString());
+        java.io.File treeOutFile = new java.io.File(outputDir + slash + fastaFile.getName() + (gzip ? ".tree.gz" : ".tree"));
+        java.io.File distOutFile = new java.io.File(outputDir + slash + fastaFile.getName() + ".distances");
+        java.io.File binaryOutFile = new java.io.File(outputDir + slash + fastaFile.getName() + ".distances.bin");
+        try( java.io.Writer treeOut = openWriter(treeOutFile, gzip);
+             java.io.Writer distOut = openWriter(distOutFile, false) ) {
+            BuildMetrics.Timer renderingTimer = metrics.start(BuildMetrics.Phase.RENDERING);
+            try {
+                tree.appendTo(out);
+                tree.writeNewick(treeOut);
+            } finally {
+                renderingTimer.close();
+            }
 
             java.util.ArrayList<Species> speciesList = tree.getAllSpecies();
             if( speciesList != null ) {
-                for( int i=0; i<speciesList.size(); i++ ) {
-                    for( int j=0; j<speciesList.size(); j++ ) {
-                        String label1 = speciesList.get(i).getName();
-                        String label2 = speciesList.get(j).getName();
-                        distOut.format("EvDistance(%s,%s) = %.2f\n",label1,label2,tree.findEvolutionaryDistance(label1,label2)); 
-                    }    
+                BuildMetrics.Timer outputTimer = metrics.start(BuildMetrics.Phase.OUTPUT);
+                try {
+                    String[] labels = new String[speciesList.size()];
+                    for( int i=0; i<labels.length; i++ ) {
+                        labels[i] = speciesList.get(i).getName();
+                    }
+                    double[][] distances = tree.getEvolutionaryDistanceMatrix();
+                    DistanceMatrixWriter.writeText(distOut, labels, distances, 2);
+                    if( binary ) {
+                        DistanceMatrixWriter.writeBinary(binaryOutFile, labels, distances);
+                    }
+                } finally {
+                    outputTimer.close();
                 }
             }
-            System.out.println("# species is " + tree.countAllSpecies());
-            System.out.println("Tree height is " + tree.getHeight());
-            System.out.format("Weighted height is %.2f\n",tree.getWeightedHeight());
+        } catch( java.io.FileNotFoundException e ) {
+            throw new java.io.IOException("Unable to open output file for writing" + e, e);
         }
+        if( metrics.isEnabled() ) {
+            metrics.add(BuildMetrics.Counter.BYTES_WRITTEN,
+                        treeOutFile.length() + distOutFile.length() + (binary ? binaryOutFile.length() : 0));
+            java.io.File reportFile = new java.io.File(metricsDir, fastaFile.getName() + ".metrics.json");
+            try( java.io.Writer reportOut = openWriter(reportFile, false) ) {
+                metrics.writeReport(reportOut);
+            }
+        }
+        out.append("# species is " + tree.countAllSpecies() + System.lineSeparator());
+        out.append("Tree height is " + tree.getHeight() + System.lineSeparator());
+        out.append(String.format("Weighted height is %.2f\n",tree.getWeightedHeight()));
         return;
     }
+
+    // loadOrBuild
+    // Pre-conditions:
+    //        - fastaFile is the input file, snapshotDir an existing directory, and options holds the build settings
+    //        - metrics receives the timings and counters of a build
+    //        - progress receives progress messages (or is null)
+    // Post-conditions:
+    //        - Returns the tree of fastaFile from its snapshot in snapshotDir if there is one for the current contents
+    //          of fastaFile and options; otherwise builds the tree and saves its snapshot
+    //        - A snapshot that cannot be read is replaced; the new one is written to a temporary file and renamed,
+    //          so concurrent jobs and interrupted runs never leave a partial snapshot behind
+    private static PhyloTree loadOrBuild(java.io.File fastaFile, java.io.File snapshotDir, PhyloTreeOptions options,
+                                         BuildMetrics metrics, java.io.PrintStream progress) throws java.io.IOException {
+        byte[] key = TreeSnapshot.key(fastaFile, options);
+        StringBuilder name = new StringBuilder();
+        for( byte b : key ) {
+            name.append(String.format("%02x", b));
+        }
+        java.io.File snapshotFile = new java.io.File(snapshotDir, name + ".snapshot");
+        try {
+            PhyloTree tree = PhyloTree.loadSnapshot(snapshotFile, key, PRINTING_DEPTH, options);
+            if( tree != null ) {
+                if( progress != null ) {
+                    progress.print(" (from snapshot)");
+                }
+                return tree;
+            }
+        } catch( java.io.IOException e ) {
+            if( progress != null ) {
+                progress.print(" (replacing unreadable snapshot: " + e.getMessage() + ")");
+            }
+        }
+
+        PhyloTree tree = new PhyloTree(fastaFile.getPath(),PRINTING_DEPTH,options,metrics);
+        java.io.File partial = java.io.File.createTempFile(name.toString(), ".partial", snapshotDir);
+        try {
+            tree.saveSnapshot(partial, key, false);
+            java.nio.file.Files.move(partial.toPath(), snapshotFile.toPath(),
+                                     java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                                     java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            partial.delete();
+        }
+        return tree;
+    }
+
+    // openWriter
+    // Pre-conditions:
+    //        - file is the path of an output file
+    //        - gzip is true if the file is to be gzip-compressed
+    // Post-conditions:
+    //        - Returns a buffered writer on the file in the platform's default charset
+    private static java.io.Writer openWriter(java.io.File file, boolean gzip) throws java.io.IOException {
+        java.io.OutputStream stream = new java.io.FileOutputStream(file);
+        if( gzip ) {
+            try {
+                stream = new java.util.zip.GZIPOutputStream(stream, 1 << 16);
+            } catch( java.io.IOException e ) {
+                stream.close();
+                throw e;
+            }
+        }
+        return new java.io.BufferedWriter(new java.io.OutputStreamWriter(stream), 1 << 16);
+    }
 }
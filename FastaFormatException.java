@@ -0,0 +1,34 @@
+/* 
+ * FastaFormatException.java
+ *
+ * Signals that a FASTA file could not be parsed. The message names the
+ * file and the line where the problem was found.
+ *
+ */
+
+public class FastaFormatException extends java.io.IOException {
+    private static final long serialVersionUID = 1L;
+
+    private long lineNumber;      // 1-based line where the problem was found
+
+    // FastaFormatException
+    // Pre-conditions:
+    //      - filename is the file being parsed
+    //      - lineNumber is the 1-based line where the problem was found
+    //      - message describes the problem
+    // Post-conditions:
+    //      - A new exception with a message of the form "filename:line: message" is created
+    public FastaFormatException(String filename, long lineNumber, String message) {
+        super(filename + ":" + lineNumber + ": " + message);
+        this.lineNumber = lineNumber;
+    }
+
+    // getLineNumber
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the line where the problem was found
+    public long getLineNumber() {
+        return this.lineNumber;
+    }
+}
@@ -0,0 +1,229 @@
+/* 
+ * FastaReader.java
+ *
+ * Reads species from a FASTA file in a single pass, one record at a time.
+ *
+ * The file is read through a FileChannel into a fixed direct buffer, and
+ * residues are encoded straight into a byte array as they are scanned, so
+ * the text of the file is never held in memory. Each call to next()
+ * returns the following species, which lets callers process alignments
+ * larger than the heap would hold as text.
+ *
+ * Record names are taken from the header line (see parseName). A name
+ * that an earlier record of the file already has gets the first free
+ * suffix "_2", "_3", ..., so every species of a file has its own leaf,
+ * row and column. Lines that start with ';' are comments. Blank lines
+ * are ignored.
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class FastaReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private String filename;              // Path of the file, for error messages
+    private FileChannel channel;          // Open channel on the file
+    private ByteBuffer buffer;            // Window of the file currently being scanned
+    private boolean endOfFile;            // True once the channel has been drained
+    private long lineNumber;              // 1-based number of the line being scanned
+    private ByteArrayOutputStream header; // Bytes of the header line being read
+    private String pendingHeader;         // Header of the next record, already read
+    private long pendingHeaderLine;       // Line where pendingHeader was found
+    private byte[] residues;              // Residues of the record being read
+    private int numResidues;              // Number of residues used in the array
+    private HashSet<String> names;        // Names of the records returned so far
+
+    // CONSTRUCTOR
+
+    // FastaReader
+    // Pre-conditions:
+    //      - filename is the path of a FASTA file
+    // Post-conditions:
+    //      - The file is open and positioned at its first record
+    //      - If the file cannot be opened, an IOException is thrown
+    public FastaReader(String filename) throws IOException {
+        this.filename = filename;
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.buffer.flip();
+        this.lineNumber = 1;
+        this.header = new ByteArrayOutputStream();
+        this.residues = new byte[1024];
+        this.names = new HashSet<String>();
+        return;
+    }
+
+    // next
+    // Pre-conditions:
+    //        - The reader is open
+    // Post-conditions:
+    //        - Returns the next species in the file, or null at the end of the file
+    //        - Records whose header has no name are skipped
+    //        - A repeated name is made distinct with the first free suffix "_2", "_3", ...
+    //        - If the file is malformed, a FastaFormatException is thrown
+    public Species next() throws IOException {
+        while( true ) {
+            String headerLine = this.pendingHeader;
+            long headerLineNumber = this.pendingHeaderLine;
+            this.pendingHeader = null;
+            if( headerLine == null ) {
+                if( !readToNextHeader() ) {
+                    return null;
+                }
+                headerLine = this.pendingHeader;
+                headerLineNumber = this.pendingHeaderLine;
+                this.pendingHeader = null;
+            }
+
+            this.numResidues = 0;
+            readToNextHeader();
+            if( this.numResidues == 0 ) {
+                throw new FastaFormatException(this.filename, headerLineNumber, "record has no sequence");
+            }
+
+            String name = parseName(headerLine);
+            if( name.isEmpty() ) {
+                continue;
+            }
+            if( !this.names.add(name) ) {
+                int copy = 2;
+                while( !this.names.add(name + "_" + copy) ) {
+                    copy++;
+                }
+                name = name + "_" + copy;
+            }
+            return new Species(name, Arrays.copyOf(this.residues, this.numResidues));
+        }
+    }
+
+    // close
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - The underlying file is closed
+    public void close() throws IOException {
+        this.channel.close();
+        return;
+    }
+
+    // STATIC
+
+    // parseName
+    // Pre-conditions:
+    //        - header is a FASTA header line, with or without the leading '>'
+    // Post-conditions:
+    //        - For bar-separated headers (for example NCBI's ">gi|5836067|ref|NP_008051.1|A"),
+    //          returns the last non-empty field
+    //        - Otherwise returns the first whitespace-separated word
+    //        - Returns the empty string if the header has no name
+    public static String parseName(String header) {
+        String text = header.startsWith(">") ? header.substring(1) : header;
+        text = text.trim();
+        if( text.indexOf('|') >= 0 ) {
+            String[] fields = text.split("\\|");
+            for( int i=fields.length-1; i>=0; i-- ) {
+                String field = fields[i].trim();
+                if( !field.isEmpty() ) {
+                    return field;
+                }
+            }
+            return "";
+        }
+        int end = 0;
+        while( end < text.length() && !Character.isWhitespace(text.charAt(end)) ) {
+            end++;
+        }
+        return text.substring(0, end);
+    }
+
+    // PRIVATE
+
+    //    - Scans sequence lines into the residue array until the next header or the end of the file
+    //    - Returns true if a header was found (it is left in pendingHeader), false at the end of the file
+    private boolean readToNextHeader() throws IOException {
+        boolean atLineStart = true;
+        while( true ) {
+            if( !this.buffer.hasRemaining() && !fill() ) {
+                return false;
+            }
+            byte b = this.buffer.get();
+            if( b == '\n' ) {
+                this.lineNumber++;
+                atLineStart = true;
+                continue;
+            }
+            if( atLineStart && (b == '>' || b == ';') ) {
+                long line = this.lineNumber;
+                String text = readRestOfLine();
+                if( b == '>' ) {
+                    this.pendingHeader = text;
+                    this.pendingHeaderLine = line;
+                    return true;
+                }
+                continue;
+            }
+            atLineStart = false;
+            if( b == '\r' || b == ' ' || b == '\t' ) {
+                continue;
+            }
+            if( this.pendingHeaderLine == 0 ) {
+                throw new FastaFormatException(this.filename, this.lineNumber, "sequence data before the first header");
+            }
+            if( !isResidue(b) ) {
+                throw new FastaFormatException(this.filename, this.lineNumber,
+                                               "unexpected character '" + (char)(b & 0xFF) + "' in sequence");
+            }
+            if( this.numResidues == this.residues.length ) {
+                this.residues = Arrays.copyOf(this.residues, this.residues.length * 2);
+            }
+            this.residues[this.numResidues++] = b;
+        }
+    }
+
+    //    - Returns the rest of the current line (without the line break), leaving the buffer at the start of the next line
+    private String readRestOfLine() throws IOException {
+        this.header.reset();
+        while( this.buffer.hasRemaining() || fill() ) {
+            byte b = this.buffer.get();
+            if( b == '\n' ) {
+                this.lineNumber++;
+                break;
+            }
+            if( b != '\r' ) {
+                this.header.write(b);
+            }
+        }
+        return new String(this.header.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    //    - Refills the buffer from the channel
+    //    - Returns false if the end of the file was reached
+    private boolean fill() throws IOException {
+        if( this.endOfFile ) {
+            return false;
+        }
+        this.buffer.clear();
+        int n = 0;
+        while( n == 0 ) {
+            n = this.channel.read(this.buffer);
+        }
+        this.buffer.flip();
+        if( n < 0 ) {
+            this.endOfFile = true;
+            return false;
+        }
+        return true;
+    }
+
+    //    - Returns true if b is a residue, gap or unknown-residue character
+    private static boolean isResidue(byte b) {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || b == '-' || b == '.' || b == '*' || b == '?';
+    }
+}
@@ -0,0 +1,79 @@
+/* 
+ * FixedPrecision.java
+ *
+ * Formats doubles with a fixed number of decimals, producing exactly the
+ * same text as String.format("%.Nf", value) but without the Formatter,
+ * boxing, or temporary strings.
+ *
+ * Java's Formatter rounds half-up from the shortest decimal representation
+ * of the double. The fast path scales the value to an integer and rounds
+ * it directly; that gives the same answer unless the scaled value is very
+ * close to a rounding boundary, in which case the slow path goes through
+ * the shortest representation the same way Formatter does.
+ *
+ */
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+public class FixedPrecision {
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+    private static final double FAST_PATH_LIMIT = 1e15;   // Largest scaled value handled by the fast path
+
+    // STATIC
+
+    // append
+    // Pre-conditions:
+    //        - out is a non-null StringBuilder
+    //        - decimals is between 0 and 9
+    // Post-conditions:
+    //        - Appends String.format("%." + decimals + "f", value) to out and returns out
+    public static StringBuilder append(StringBuilder out, double value, int decimals) {
+        if( decimals < 0 || decimals >= POWERS_OF_TEN.length ) {
+            throw new IllegalArgumentException("decimals must be between 0 and 9: " + decimals);
+        }
+        // negative values (including -0.0), NaN and huge values keep Formatter's exact behaviour
+        double scaled = value * POWERS_OF_TEN[decimals];
+        if( !(scaled < FAST_PATH_LIMIT) || Double.doubleToRawLongBits(value) < 0 ) {
+            return appendSlow(out, value, decimals);
+        }
+
+        long whole = (long)scaled;
+        double fraction = scaled - whole;
+        double margin = 16 * Math.ulp(scaled);
+        if( Math.abs(fraction - 0.5) <= margin ) {
+            return appendSlow(out, value, decimals);
+        }
+        if( fraction > 0.5 ) {
+            whole++;
+        }
+
+        if( decimals == 0 ) {
+            return out.append(whole);
+        }
+        long factor = (long)POWERS_OF_TEN[decimals];
+        out.append(whole / factor).append('.');
+        long rest = whole % factor;
+        for( long digit=factor/10; digit>0; digit/=10 ) {
+            out.append((char)('0' + (rest / digit) % 10));
+        }
+        return out;
+    }
+
+    // format
+    // Pre-conditions:
+    //        - decimals is between 0 and 9
+    // Post-conditions:
+    //        - Returns String.format("%." + decimals + "f", value)
+    public static String format(double value, int decimals) {
+        return append(new StringBuilder(24), value, decimals).toString();
+    }
+
+    //    - Rounds half-up from the shortest decimal representation, as Formatter does
+    private static StringBuilder appendSlow(StringBuilder out, double value, int decimals) {
+        if( Double.isNaN(value) || Double.isInfinite(value) || Double.doubleToRawLongBits(value) < 0 ) {
+            return out.append(String.format("%." + decimals + "f", value));
+        }
+        return out.append(new BigDecimal(Double.toString(value)).setScale(decimals, RoundingMode.HALF_UP).toPlainString());
+    }
+}
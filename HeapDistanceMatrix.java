@@ -0,0 +1,54 @@
+/*
+ * HeapDistanceMatrix.java
+ *
+ * A DistanceMatrix whose condensed upper triangle is a primitive array
+ * on the heap, which limits it to about 65,000 slots.
+ *
+ */
+
+public class HeapDistanceMatrix extends DistanceMatrix {
+    private static final long MAX_LENGTH = Integer.MAX_VALUE - 8;  // Largest array the VM allocates
+
+    private final double[] values;      // Condensed upper triangle, row by row
+
+    // CONSTRUCTOR
+
+    // HeapDistanceMatrix
+    // Pre-conditions:
+    //      - size is the number of slots; size*(size-1)/2 must fit in an array
+    // Post-conditions:
+    //      - A matrix with every off-diagonal distance set to 0 is created
+    //      - If the matrix is too large for an array, an IllegalArgumentException is thrown
+    public HeapDistanceMatrix(int size) {
+        super(size);
+        long length = (long)size * (size - 1) / 2;
+        if( !fits(length) ) {
+            throw new IllegalArgumentException("Too many species for an in-memory distance matrix: " + size);
+        }
+        this.values = new double[(int)Math.max(length, 0)];
+        return;
+    }
+
+    // STORAGE
+
+    protected double read(long position) {
+        return this.values[(int)position];
+    }
+
+    protected void write(long position, double value) {
+        this.values[(int)position] = value;
+        return;
+    }
+
+    protected void readRange(long position, double[] into, int offset, int length) {
+        System.arraycopy(this.values, (int)position, into, offset, length);
+        return;
+    }
+
+    // STATIC
+
+    //    - Returns true if a triangle of length distances fits in an array
+    static boolean fits(long length) {
+        return length <= MAX_LENGTH;
+    }
+}
@@ -0,0 +1,191 @@
+/* 
+ * LcaIndex.java
+ *
+ * Answers least-common-ancestor and weighted-depth queries on a built
+ * phylogenetic tree in constant time.
+ *
+ * Nodes are identified by their CompactTree ids. Because the tree is
+ * strictly binary, the least common ancestor of two nodes is the
+ * shallowest node that lies between them in an in-order walk, so a sparse
+ * table of range minimums over the in-order sequence (n log n ints)
+ * answers each query with two table lookups. The weighted depth of every
+ * node (the sum of the edge weights from the root) and the pre-order walk
+ * of the tree are cached too.
+ *
+ * distance walks from each node up to their least common ancestor, adding
+ * the edge weights bottom-up. A difference of weighted depths would take
+ * constant time, but rounds differently, and the distances Driver prints
+ * would no longer match those of the original path walk.
+ *
+ * The index is a snapshot: it must be rebuilt if the tree changes.
+ *
+ */
+
+public class LcaIndex {
+    private CompactTree tree;         // Tree the index was built from
+    private int[] preorder;           // Node ids in pre-order (each node before its children, left before right)
+    private int[] depth;              // Number of edges from the root to node id
+    private double[] weightedDepth;   // Sum of edge weights from the root to node id
+    private int[] inorderPosition;    // Position of node id in the in-order walk
+    private int[][] rangeMin;         // rangeMin[k][p] is the shallowest node among in-order positions p..p+2^k-1
+
+    // CONSTRUCTOR
+
+    // LcaIndex
+    // Pre-conditions:
+    //      - tree is a strictly binary tree (possibly empty)
+    // Post-conditions:
+    //      - The depth, pre-order and range-minimum tables of every node are filled in
+    public LcaIndex(CompactTree tree) {
+        int root = tree.getRoot();
+        int size = (root == CompactTree.NONE) ? 0 : 2 * tree.getNumLeafs(root) - 1;
+        int capacity = tree.size();
+        this.tree = tree;
+        this.preorder = new int[size];
+        this.depth = new int[capacity];
+        this.weightedDepth = new double[capacity];
+        this.inorderPosition = new int[capacity];
+        int[] inorder = new int[size];
+        if( size == 0 ) {
+            this.rangeMin = new int[0][];
+            return;
+        }
+
+        // pre-order walk: parents before children, so depths can be accumulated downwards
+        int[] stack = new int[size];
+        int top = 0;
+        int numNodes = 0;
+        stack[top++] = root;
+        while( top > 0 ) {
+            int id = stack[--top];
+            this.preorder[numNodes++] = id;
+            int parent = tree.getParent(id);
+            if( id != root ) {
+                this.depth[id] = this.depth[parent] + 1;
+                this.weightedDepth[id] = this.weightedDepth[parent] + tree.getDistanceToChild(parent);
+            }
+            if( !tree.isLeaf(id) ) {
+                stack[top++] = tree.getRight(id);
+                stack[top++] = tree.getLeft(id);
+            }
+        }
+
+        // in-order walk
+        int position = 0;
+        int current = root;
+        top = 0;
+        while( current != CompactTree.NONE || top > 0 ) {
+            if( current != CompactTree.NONE ) {
+                stack[top++] = current;
+                current = tree.getLeft(current);
+            } else {
+                int id = stack[--top];
+                this.inorderPosition[id] = position;
+                inorder[position++] = id;
+                current = tree.getRight(id);
+            }
+        }
+
+        // sparse table of the shallowest node over every power-of-two range of in-order positions
+        int levels = 1;
+        while( (1 << levels) <= size ) {
+            levels++;
+        }
+        this.rangeMin = new int[levels][];
+        this.rangeMin[0] = inorder;
+        for( int k=1; k<levels; k++ ) {
+            int half = 1 << (k - 1);
+            int[] previous = this.rangeMin[k-1];
+            int[] level = new int[size - (1 << k) + 1];
+            for( int p=0; p<level.length; p++ ) {
+                level[p] = shallower(previous[p], previous[p+half]);
+            }
+            this.rangeMin[k] = level;
+        }
+        return;
+    }
+
+    // ACCESSORS
+
+    // size
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of nodes in the tree
+    public int size() {
+        return this.preorder.length;
+    }
+
+    // preorder
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the node ids in pre-order; the leaves below any node form a
+    //          contiguous run of this order. The array must not be modified
+    public int[] preorder() {
+        return this.preorder;
+    }
+
+    // weightedDepth
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Returns the sum of the edge weights from the root to node id
+    public double weightedDepth(int id) {
+        return this.weightedDepth[id];
+    }
+
+    // depth
+    // Pre-conditions:
+    //        - id is a node id
+    // Post-conditions:
+    //        - Returns the number of edges from the root to node id
+    public int depth(int id) {
+        return this.depth[id];
+    }
+
+    // leastCommonAncestor
+    // Pre-conditions:
+    //        - id1 and id2 are node ids
+    // Post-conditions:
+    //        - Returns the id of the deepest node that is an ancestor of both
+    //          (a node counts as its own ancestor)
+    public int leastCommonAncestor(int id1, int id2) {
+        int from = this.inorderPosition[id1];
+        int to = this.inorderPosition[id2];
+        if( from > to ) {
+            int t = from;
+            from = to;
+            to = t;
+        }
+        int k = 31 - Integer.numberOfLeadingZeros(to - from + 1);
+        return shallower(this.rangeMin[k][from], this.rangeMin[k][to - (1 << k) + 1]);
+    }
+
+    // distance
+    // Pre-conditions:
+    //        - id1 and id2 are node ids
+    // Post-conditions:
+    //        - Returns the sum of the edge weights on the path between the two nodes, each half added from
+    //          the node up to the ancestor; runs in time proportional to the length of the path
+    public double distance(int id1, int id2) {
+        int ancestor = leastCommonAncestor(id1, id2);
+        return pathWeight(id1, ancestor) + pathWeight(id2, ancestor);
+    }
+
+    //    - ancestor is an ancestor of id (or id itself)
+    //    - Returns the sum of the edge weights from id up to ancestor, in that order
+    private double pathWeight(int id, int ancestor) {
+        double weight = 0;
+        while( id != ancestor ) {
+            id = this.tree.getParent(id);
+            weight += this.tree.getDistanceToChild(id);
+        }
+        return weight;
+    }
+
+    //    - Returns whichever of the two nodes is closer to the root
+    private int shallower(int id1, int id2) {
+        return (this.depth[id1] <= this.depth[id2]) ? id1 : id2;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * MappedDistanceMatrix.java
+ *
+ * A DistanceMatrix whose condensed upper triangle lives in a temporary
+ * file, memory-mapped in segments of SEGMENT_LENGTH distances (a single
+ * mapping is limited to 2GB). The operating system pages the file in and
+ * out as the clustering walks the triangle, so the matrix can be much
+ * larger than the heap, or than physical memory, as long as the disk
+ * holds 8 bytes per pair: 160GB for 200,000 species.
+ *
+ * The file is created sparse, so untouched pairs cost no disk space, and
+ * it is deleted by close(); open the matrix in a try-with-resources block
+ * so the file does not outlive the build.
+ *
+ * getRow(i) is not free here: the row part of slot i is one sequential
+ * read, but the column part, (x,i) for x < i, is one distance from each
+ * of the i rows above, a stride of almost a row apart. Each of those
+ * reads may touch a different page, and a different segment, so the
+ * column part can cost up to i page faults when the file is not cached.
+ *
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+public class MappedDistanceMatrix extends DistanceMatrix {
+    private static final int SEGMENT_SHIFT = 27;                          // log2 of the distances per segment
+    private static final long SEGMENT_LENGTH = 1L << SEGMENT_SHIFT;       // Distances per segment (1GB)
+    private static final long SEGMENT_MASK = SEGMENT_LENGTH - 1;
+
+    private final File file;                // Temporary file holding the triangle
+    private DoubleBuffer[] segments;        // Mapped views of the file, SEGMENT_LENGTH distances each
+
+    // CONSTRUCTOR
+
+    // MappedDistanceMatrix
+    // Pre-conditions:
+    //      - size is the number of slots
+    //      - directory is where the file is created (null for the system temporary directory)
+    // Post-conditions:
+    //      - A matrix with every off-diagonal distance set to 0 is created, backed by a new temporary file
+    //      - If the file cannot be created or mapped, an IOException is thrown
+    public MappedDistanceMatrix(int size, File directory) throws IOException {
+        super(size);
+        long length = (long)size * (size - 1) / 2;
+        this.file = File.createTempFile("distances", ".bin", directory);
+        try( RandomAccessFile raf = new RandomAccessFile(this.file, "rw") ) {
+            raf.setLength(8 * length);
+            FileChannel channel = raf.getChannel();
+            int numSegments = (int)((length + SEGMENT_LENGTH - 1) >>> SEGMENT_SHIFT);
+            this.segments = new DoubleBuffer[numSegments];
+            for( int s=0; s<numSegments; s++ ) {
+                long first = (long)s << SEGMENT_SHIFT;
+                long count = Math.min(SEGMENT_LENGTH, length - first);
+                this.segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, 8 * first, 8 * count)
+                                          .order(ByteOrder.nativeOrder())
+                                          .asDoubleBuffer();
+            }
+        } catch( IOException | RuntimeException e ) {
+            this.file.delete();
+            throw e;
+        }
+        return;
+    }
+
+    // close
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - The mappings are dropped and the file is deleted
+    public void close() throws IOException {
+        this.segments = null;
+        if( this.file.exists() && !this.file.delete() ) {
+            throw new IOException("Unable to delete " + this.file);
+        }
+        return;
+    }
+
+    // STORAGE
+
+    protected double read(long position) {
+        return this.segments[(int)(position >>> SEGMENT_SHIFT)].get((int)(position & SEGMENT_MASK));
+    }
+
+    protected void write(long position, double value) {
+        this.segments[(int)(position >>> SEGMENT_SHIFT)].put((int)(position & SEGMENT_MASK), value);
+        return;
+    }
+
+    protected void readRange(long position, double[] into, int offset, int length) {
+        while( length > 0 ) {
+            DoubleBuffer segment = this.segments[(int)(position >>> SEGMENT_SHIFT)];
+            int start = (int)(position & SEGMENT_MASK);
+            int count = Math.min(length, segment.capacity() - start);
+            segment.get(start, into, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+        return;
+    }
+}
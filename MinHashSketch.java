@@ -0,0 +1,187 @@
+/*
+ * MinHashSketch.java
+ *
+ * Sketches sequences into fixed-size MinHash signatures of their k-mers,
+ * and finds the pairs of similar sequences from the signatures alone by
+ * locality-sensitive hashing, without comparing every pair (see
+ * SparseDistances, which computes distances for those pairs only).
+ *
+ * A k-mer is a run of k residues of the sequence with its gaps removed
+ * (see Species.isGap). Each k-mer is hashed once; the hash picks one of
+ * size bins and its low bits compete for the minimum of that bin
+ * (one-permutation hashing). Bins no k-mer fell into take the minimum of
+ * the next filled bin, mixed with their distance to it, so two signatures
+ * agree in a bin with probability close to the Jaccard similarity of the
+ * k-mer sets however short the sequences are. Sketching costs one hash
+ * per residue, not one per residue and bin.
+ *
+ * The signature is cut into bands of size/bands consecutive bins, and two
+ * sequences are candidates if they agree on every bin of at least one
+ * band. With r bins per band, a pair of Jaccard similarity J is found
+ * with probability 1 - (1 - J^r)^bands, so more bands (fewer bins per
+ * band) find more distant pairs at the cost of more candidates. A bucket
+ * of species sharing a band is paired along a window of BUCKET_NEIGHBORS,
+ * so near-identical groups do not produce a quadratic number of pairs.
+ *
+ */
+
+import java.util.Arrays;
+
+public class MinHashSketch {
+    public static final int EMPTY = -1;                     // Bin value of a sequence with no k-mer
+    public static final int MAX_SPECIES = 1 << 24;          // Species that candidatePairs can index
+    private static final int BUCKET_NEIGHBORS = 8;          // Later members of a bucket each member is paired with
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;  // Odd multiplier of the rolling hashes
+
+    // STATIC
+
+    // sketch
+    // Pre-conditions:
+    //        - residues is an encoded sequence
+    //        - k and size are positive
+    // Post-conditions:
+    //        - Returns the signature of the k-mers of residues: size bin values from 0 to 2^31-1
+    //        - Returns size EMPTY values if the sequence has fewer than k residues that are not gaps
+    public static int[] sketch(byte[] residues, int k, int size) {
+        int[] signature = new int[size];
+        Arrays.fill(signature, EMPTY);
+
+        // rolls the hash of the last k residues along the ungapped sequence: hash = sum of code * B^(k-1-i)
+        byte[] window = new byte[k];
+        long highPower = 1;
+        for( int i=1; i<k; i++ ) {
+            highPower *= HASH_MULTIPLIER;
+        }
+        long hash = 0;
+        int count = 0;
+        int filled = 0;
+        for( byte code : residues ) {
+            if( Species.isGap(code) ) {
+                continue;
+            }
+            int slot = count % k;
+            if( count >= k ) {
+                hash -= window[slot] * highPower;
+            }
+            hash = hash * HASH_MULTIPLIER + code;
+            window[slot] = code;
+            count++;
+            if( count >= k ) {
+                long mixed = mix(hash);
+                int bin = (int)(((mixed >>> 32) * size) >>> 32);
+                int value = (int)mixed & 0x7FFFFFFF;
+                if( signature[bin] == EMPTY ) {
+                    filled++;
+                    signature[bin] = value;
+                } else if( value < signature[bin] ) {
+                    signature[bin] = value;
+                }
+            }
+        }
+        if( filled == 0 || filled == size ) {
+            return signature;
+        }
+
+        // fills each empty bin from the next filled one to its right (wrapping around), mixed with the distance
+        int[] filledOnly = signature.clone();
+        for( int bin=0; bin<size; bin++ ) {
+            if( filledOnly[bin] != EMPTY ) {
+                continue;
+            }
+            int next = bin;
+            int distance = 0;
+            do {
+                next = (next + 1 == size) ? 0 : next + 1;
+                distance++;
+            } while( filledOnly[next] == EMPTY );
+            signature[bin] = (int)mix(((long)distance << 32) | filledOnly[next]) & 0x7FFFFFFF;
+        }
+        return signature;
+    }
+
+    // candidatePairs
+    // Pre-conditions:
+    //        - signatures holds a signature of the same size for each species, made by sketch
+    //        - bands divides the signature size
+    //        - There are at most MAX_SPECIES signatures
+    // Post-conditions:
+    //        - Returns the candidate pairs, each as (i << 32) | j with i < j the indexes of two species, sorted
+    //          and without repeats
+    //        - Species with an EMPTY signature are in no pair
+    public static long[] candidatePairs(int[][] signatures, int bands) {
+        int n = signatures.length;
+        if( n > MAX_SPECIES ) {
+            throw new IllegalArgumentException("Too many species to sketch: " + n);
+        }
+        if( n < 2 ) {
+            return new long[0];
+        }
+        int rows = signatures[0].length / bands;
+
+        // in each band, sorts the species by the high bits of the hash of their bins, with the species index in the
+        // low bits, so each bucket is a run of equal high bits in index order
+        long[] pairs = new long[Math.max(16, 2 * n)];
+        int numPairs = 0;
+        long[] keys = new long[n];
+        for( int band=0; band<bands; band++ ) {
+            int numKeys = 0;
+            for( int i=0; i<n; i++ ) {
+                int[] signature = signatures[i];
+                if( signature[0] == EMPTY ) {
+                    continue;
+                }
+                long hash = band + 1;
+                for( int r=band*rows; r<(band+1)*rows; r++ ) {
+                    hash = hash * HASH_MULTIPLIER + signature[r];
+                }
+                keys[numKeys++] = (mix(hash) & ~(long)(MAX_SPECIES - 1)) | i;
+            }
+            Arrays.sort(keys, 0, numKeys);
+
+            for( int start=0; start<numKeys; ) {
+                int end = start + 1;
+                long bucket = keys[start] & ~(long)(MAX_SPECIES - 1);
+                while( end < numKeys && (keys[end] & ~(long)(MAX_SPECIES - 1)) == bucket ) {
+                    end++;
+                }
+                for( int a=start; a<end; a++ ) {
+                    long i = keys[a] & (MAX_SPECIES - 1);
+                    for( int b=a+1; b<end && b<=a+BUCKET_NEIGHBORS; b++ ) {
+                        if( numPairs == pairs.length ) {
+                            // drops the repeats before growing, so bands that find the same pairs cost no memory
+                            numPairs = sortUnique(pairs, numPairs);
+                            if( numPairs > pairs.length / 2 ) {
+                                pairs = Arrays.copyOf(pairs, 2 * pairs.length);
+                            }
+                        }
+                        pairs[numPairs++] = (i << 32) | (keys[b] & (MAX_SPECIES - 1));
+                    }
+                }
+                start = end;
+            }
+        }
+        return Arrays.copyOf(pairs, sortUnique(pairs, numPairs));
+    }
+
+    //    - Sorts pairs[0..count) and moves each value once to the front; returns the number of distinct values
+    private static int sortUnique(long[] pairs, int count) {
+        Arrays.sort(pairs, 0, count);
+        int unique = 0;
+        for( int k=0; k<count; k++ ) {
+            if( unique == 0 || pairs[k] != pairs[unique - 1] ) {
+                pairs[unique++] = pairs[k];
+            }
+        }
+        return unique;
+    }
+
+    //    - Returns h with every bit mixed into every other (the finalizer of MurmurHash3)
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -11,6 +11,7 @@
  * 
  * Brian Hutchinson
  * Feb 2016
+ */
 
 public class MultiKeyMap<V> {
     private java.util.HashMap<String,V> map;
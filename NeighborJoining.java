@@ -0,0 +1,515 @@
+/*
+ * NeighborJoining.java
+ *
+ * Builds a tree by neighbor joining (Saitou and Nei): with r trees left,
+ * the pair (i,j) that minimizes
+ *
+ *   Q(i,j) = (r-2) * d(i,j) - R(i) - R(j)
+ *
+ * is joined, where R(i) is the sum of the distances from i to the other
+ * trees, and the joined tree u gets d(u,k) = (d(i,k) + d(j,k) - d(i,j)) / 2.
+ *
+ * Rather than rebuilding Q at every step, the row sums R are updated in
+ * O(r) after each join, and the minimum is searched the way RapidNJ does:
+ * when a tree is created, its nearest trees are sorted by distance into a
+ * short list. The distance between two trees never changes while both
+ * exist, so the list stays sorted; trees joined since are skipped, and
+ * pairs with trees created later are found from the later tree's list.
+ * Since R(j) is at most the largest row sum, a row's walk stops at the
+ * first entry with
+ *
+ *   (r-2) * d(i,j) - R(i) - max R  >  best Q so far,
+ *
+ * which for most rows is the first entry. A row whose list runs out is
+ * sorted again, twice as long. The rows are searched in parallel on a
+ * fork-join pool, each task keeping its own best pair, and the results are
+ * reduced to the smallest (Q, i, j), so the joins do not depend on the
+ * number of threads.
+ *
+ * Joined slots are left empty until half of the slots are, and the matrix
+ * is then compacted in place, so a join touches O(r) entries rather than
+ * O(n).
+ *
+ * PhyloTree nodes hold a single weight for both children, so a joined
+ * node gets d(i,j) / 2: the mean of the two neighbor-joining branch
+ * lengths, which keeps the path length between the joined trees equal to
+ * d(i,j). The root is the last join.
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class NeighborJoining {
+    private static final int ROWS_PER_TASK = 64;      // Rows below which a task stops splitting
+    private static final int SORTED_ENTRIES = 128;    // Length of the sorted list of a new tree
+
+    private final DistanceMatrix distances;   // Distances between the trees in the first size slots
+    private final BuildMetrics metrics;       // Receives the distances read and written, in bulk
+    private final CompactTree tree;           // Tree the joined nodes are added to
+    private final int[] slots;                // Tree id held in each slot, or NONE
+    private final int[] slotOf;               // Slot holding each tree id, or NONE once it has been joined
+    private final double[] rowSum;            // R of the tree in each slot
+    private final long[][] sorted;            // Keys of the nearest trees of each slot, by increasing distance
+    private final int[] start;                // First entry of each sorted list that may still be in use
+    private final boolean[] complete;         // True if a sorted list held every tree when it was sorted
+    private final double[] row1;              // Scratch rows for join
+    private final double[] row2;
+    private int size;                         // Number of slots, including empty ones
+    private int remaining;                    // Number of slots in use
+
+    // CONSTRUCTOR
+
+    // NeighborJoining
+    // Pre-conditions:
+    //      - distances holds the distances between the trees in clusters, slot by slot
+    //      - clusters holds the id in tree of the tree in each slot (every slot in use)
+    //      - metrics receives the distances read and written
+    // Post-conditions:
+    //      - The row sums of every slot are set up; the sorted lists are not
+    private NeighborJoining(DistanceMatrix distances, CompactTree tree, int[] clusters, BuildMetrics metrics) {
+        int n = clusters.length;
+        this.distances = distances;
+        this.metrics = metrics;
+        this.tree = tree;
+        this.slots = clusters.clone();
+        this.slotOf = new int[tree.size() + n];
+        Arrays.fill(this.slotOf, CompactTree.NONE);
+        this.rowSum = new double[n];
+        this.sorted = new long[n][];
+        this.start = new int[n];
+        this.complete = new boolean[n];
+        this.row1 = new double[n];
+        this.row2 = new double[n];
+        this.size = n;
+        this.remaining = n;
+        for( int i=0; i<n; i++ ) {
+            this.slotOf[clusters[i]] = i;
+            for( int j=i+1; j<n; j++ ) {
+                double d = distances.get(i, j);
+                this.rowSum[i] += d;
+                this.rowSum[j] += d;
+            }
+        }
+        metrics.add(BuildMetrics.Counter.MATRIX_READS, (long)n * (n - 1) / 2);
+        return;
+    }
+
+    // STATIC
+
+    // cluster
+    // Pre-conditions:
+    //        - distances holds the distances between the trees in clusters, slot by slot
+    //        - clusters holds the id in tree of the tree in each slot (every slot in use)
+    //        - numThreads is the number of worker threads to use (1 runs serially)
+    // Post-conditions:
+    //        - The trees have been joined into a single tree, left in slot 0 of clusters;
+    //          every other slot holds CompactTree.NONE
+    //        - distances has been overwritten and compacted
+    public static void cluster(DistanceMatrix distances, CompactTree tree, int[] clusters, int numThreads) {
+        cluster(distances, tree, clusters, numThreads, BuildMetrics.DISABLED);
+        return;
+    }
+
+    // cluster
+    // Pre-conditions:
+    //        - distances, tree, clusters and numThreads are as above
+    //        - metrics receives the distances read and written, added per row, per search or per join
+    // Post-conditions:
+    //        - Same as above, with the work counted in metrics
+    public static void cluster(DistanceMatrix distances, CompactTree tree, int[] clusters, int numThreads,
+                               BuildMetrics metrics) {
+        if( clusters.length == 0 ) {
+            return;
+        }
+        NeighborJoining state = new NeighborJoining(distances, tree, clusters, metrics);
+        ForkJoinPool pool = (numThreads > 1) ? new ForkJoinPool(numThreads) : null;
+        try {
+            SortTask sortAll = new SortTask(state, 0, state.size);
+            if( pool == null ) {
+                sortAll.compute();
+            } else {
+                pool.invoke(sortAll);
+            }
+            while( state.remaining > 2 ) {
+                if( state.remaining <= state.size / 2 ) {
+                    state.compact();
+                }
+                Candidate best = state.findPair(pool);
+                state.join(best.i, best.j);
+            }
+        } finally {
+            if( pool != null ) {
+                pool.shutdown();
+            }
+        }
+
+        // the last two trees are joined at the root
+        if( state.remaining == 2 ) {
+            int i = 0;
+            while( state.slots[i] == CompactTree.NONE ) {
+                i++;
+            }
+            int j = i + 1;
+            while( state.slots[j] == CompactTree.NONE ) {
+                j++;
+            }
+            state.join(i, j);
+        }
+        Arrays.fill(clusters, CompactTree.NONE);
+        for( int i=0; i<state.size; i++ ) {
+            if( state.slots[i] != CompactTree.NONE ) {
+                clusters[0] = state.slots[i];
+            }
+        }
+    }
+
+    // findPair
+    // Pre-conditions:
+    //        - more than 2 slots are in use
+    //        - pool runs the search, or is null to search serially
+    // Post-conditions:
+    //        - Returns the pair i < j of slots in use with the smallest (Q, i, j)
+    private Candidate findPair(ForkJoinPool pool) {
+        double factor = this.remaining - 2;
+        double maxSum = Double.NEGATIVE_INFINITY;
+        for( int i=0; i<this.size; i++ ) {
+            if( this.slots[i] != CompactTree.NONE ) {
+                maxSum = Math.max(maxSum, this.rowSum[i]);
+            }
+        }
+
+        // the row whose nearest tree looks best usually holds the best pair, and gives every task a bound to prune against
+        int seedRow = -1;
+        double seedBound = Double.POSITIVE_INFINITY;
+        for( int i=0; i<this.size; i++ ) {
+            if( this.slots[i] == CompactTree.NONE ) {
+                continue;
+            }
+            int e = skipJoined(i);
+            long[] list = this.sorted[i];
+            double bound = (e < list.length) ? factor * keyDistance(list[e]) - this.rowSum[i] : Double.NEGATIVE_INFINITY;
+            if( seedRow < 0 || bound < seedBound ) {
+                seedRow = i;
+                seedBound = bound;
+            }
+        }
+        Candidate seed = new Candidate();
+        searchRow(seedRow, factor, maxSum, seed);
+
+        SearchTask task = new SearchTask(this, factor, maxSum, seedRow, seed, 0, this.size);
+        Candidate best = (pool == null) ? task.compute() : pool.invoke(task);
+        this.metrics.add(BuildMetrics.Counter.MATRIX_READS, seed.reads + best.reads);
+        return best;
+    }
+
+    // searchRow
+    // Pre-conditions:
+    //        - row is a slot in use
+    //        - maxSum is the largest row sum of the slots in use
+    // Post-conditions:
+    //        - best holds the smaller of itself and every pair of row with a tree that was
+    //          in use when row was last sorted, and counts the distances read
+    private void searchRow(int row, double factor, double maxSum, Candidate best) {
+        double sum = this.rowSum[row];
+        while( true ) {
+            long[] list = this.sorted[row];
+            for( int e=skipJoined(row); e<list.length; e++ ) {
+                // no later entry can beat best
+                if( factor * keyDistance(list[e]) - sum - maxSum > best.q ) {
+                    return;
+                }
+                int other = this.slotOf[(int)list[e]];
+                if( other == CompactTree.NONE ) {
+                    continue;
+                }
+                double q = factor * this.distances.get(row, other) - sum - this.rowSum[other];
+                best.reads++;
+                if( q <= best.q ) {
+                    best.offer(q, Math.min(row, other), Math.max(row, other));
+                }
+            }
+            if( this.complete[row] ) {
+                return;
+            }
+            sortRow(row, 2 * list.length);
+        }
+    }
+
+    // skipJoined
+    // Pre-conditions:
+    //        - row is a slot in use
+    // Post-conditions:
+    //        - Moves the start of the sorted list of row past leading trees that have been joined, and returns it
+    private int skipJoined(int row) {
+        long[] list = this.sorted[row];
+        int e = this.start[row];
+        while( e < list.length && this.slotOf[(int)list[e]] == CompactTree.NONE ) {
+            e++;
+        }
+        this.start[row] = e;
+        return e;
+    }
+
+    // sortRow
+    // Pre-conditions:
+    //        - row is a slot in use, and limit > 0
+    // Post-conditions:
+    //        - The sorted list of row holds its limit nearest trees in use, by increasing distance
+    private void sortRow(int row, int limit) {
+        double[] distance = new double[this.size];
+        this.distances.getRow(row, distance);
+        this.metrics.add(BuildMetrics.Counter.MATRIX_READS, this.size - 1);
+        long[] keys = new long[this.remaining - 1];
+        int count = 0;
+        for( int j=0; j<this.size; j++ ) {
+            if( j != row && this.slots[j] != CompactTree.NONE ) {
+                keys[count++] = key(distance[j], this.slots[j]);
+            }
+        }
+        if( count > limit ) {
+            selectSmallest(keys, count, limit);
+            count = limit;
+        }
+        this.sorted[row] = Arrays.copyOf(keys, count);
+        Arrays.sort(this.sorted[row]);
+        this.complete[row] = (count < limit) || (count == this.remaining - 1);
+        this.start[row] = 0;
+        return;
+    }
+
+    // join
+    // Pre-conditions:
+    //        - i < j are slots in use
+    // Post-conditions:
+    //        - The trees in i and j are joined under a new node of tree held in slot i, and slot j is emptied
+    //        - The distances and row sums of the remaining slots have been updated, and slot i has been sorted
+    private void join(int i, int j) {
+        double dij = this.distances.get(i, j);
+
+        // the tree with the alphabetically smaller label becomes the left child
+        int left = this.slots[i];
+        int right = this.slots[j];
+        if( this.tree.compareLabels(left, right) > 0 ) {
+            left = this.slots[j];
+            right = this.slots[i];
+        }
+        int joined = this.tree.addInternal(left, right, dij / 2.0);
+
+        double sum = 0;
+        this.distances.getRow(i, this.row1);
+        this.distances.getRow(j, this.row2);
+        for( int k=0; k<this.size; k++ ) {
+            if( this.slots[k] == CompactTree.NONE || k == i || k == j ) {
+                continue;
+            }
+            double dik = this.row1[k];
+            double djk = this.row2[k];
+            double duk = (dik + djk - dij) / 2.0;
+            this.distances.set(i, k, duk);
+            this.rowSum[k] += duk - dik - djk;
+            sum += duk;
+        }
+        this.rowSum[i] = sum;
+        this.metrics.add(BuildMetrics.Counter.MATRIX_READS, 1 + 2L * (this.size - 1));
+        this.metrics.add(BuildMetrics.Counter.MATRIX_WRITES, this.remaining - 2);
+
+        this.slotOf[this.slots[i]] = CompactTree.NONE;
+        this.slotOf[this.slots[j]] = CompactTree.NONE;
+        this.slotOf[joined] = i;
+        this.slots[i] = joined;
+        this.slots[j] = CompactTree.NONE;
+        this.sorted[j] = null;
+        this.remaining--;
+        sortRow(i, SORTED_ENTRIES);
+        return;
+    }
+
+    // compact
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - The slots in use have been moved, in order, to the front of every per-slot array and of distances
+    private void compact() {
+        int[] kept = new int[this.remaining];
+        int count = 0;
+        for( int i=0; i<this.size; i++ ) {
+            if( this.slots[i] != CompactTree.NONE ) {
+                kept[count++] = i;
+            }
+        }
+        this.distances.compact(kept, count);
+        this.metrics.add(BuildMetrics.Counter.MATRIX_READS, (long)count * (count - 1) / 2);
+        this.metrics.add(BuildMetrics.Counter.MATRIX_WRITES, (long)count * (count - 1) / 2);
+        for( int a=0; a<count; a++ ) {
+            int i = kept[a];
+            this.slots[a] = this.slots[i];
+            this.slotOf[this.slots[a]] = a;
+            this.rowSum[a] = this.rowSum[i];
+            this.sorted[a] = this.sorted[i];
+            this.start[a] = this.start[i];
+            this.complete[a] = this.complete[i];
+        }
+        Arrays.fill(this.slots, count, this.size, CompactTree.NONE);
+        Arrays.fill(this.sorted, count, this.size, null);
+        this.size = count;
+        return;
+    }
+
+    // key
+    // Pre-conditions:
+    //        - id is a tree id and d its distance from the tree of a row
+    // Post-conditions:
+    //        - Returns a long that orders by d and then id, holding id in its low 32 bits and, in its
+    //          high 32 bits, the largest float that is <= d, in a form that compares like the float
+    private static long key(double d, int id) {
+        float f = (float)d;
+        if( f > d ) {
+            f = Math.nextDown(f);
+        }
+        int bits = Float.floatToIntBits(f);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return ((long)bits << 32) | (id & 0xffffffffL);
+    }
+
+    // keyDistance
+    // Pre-conditions:
+    //        - key was returned by key(d, id)
+    // Post-conditions:
+    //        - Returns the float stored in key, a lower bound on d
+    private static double keyDistance(long key) {
+        int bits = (int)(key >> 32);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return Float.intBitsToFloat(bits);
+    }
+
+    // selectSmallest
+    // Pre-conditions:
+    //        - 0 < k < count <= keys.length
+    // Post-conditions:
+    //        - keys[0..k) holds the k smallest of keys[0..count), in no particular order
+    private static void selectSmallest(long[] keys, int count, int k) {
+        int lo = 0;
+        int hi = count - 1;
+        while( lo < hi ) {
+            long pivot = keys[(lo + hi) >>> 1];
+            int a = lo;
+            int b = hi;
+            while( a <= b ) {
+                while( keys[a] < pivot ) {
+                    a++;
+                }
+                while( keys[b] > pivot ) {
+                    b--;
+                }
+                if( a <= b ) {
+                    long t = keys[a];
+                    keys[a] = keys[b];
+                    keys[b] = t;
+                    a++;
+                    b--;
+                }
+            }
+            if( k - 1 <= b ) {
+                hi = b;
+            } else if( k - 1 >= a ) {
+                lo = a;
+            } else {
+                return;
+            }
+        }
+        return;
+    }
+
+    // Candidate
+    //        - The best pair seen so far, ordered by (Q, i, j), and the distances read to find it
+    private static class Candidate {
+        double q = Double.POSITIVE_INFINITY;
+        int i = -1;
+        int j = -1;
+        long reads;
+
+        void offer(double q, int i, int j) {
+            if( this.i < 0 || q < this.q || (q == this.q && (i < this.i || (i == this.i && j < this.j))) ) {
+                this.q = q;
+                this.i = i;
+                this.j = j;
+            }
+        }
+    }
+
+    // SortTask
+    //        - Sorts the lists of a range of rows, splitting it in half until it is small enough to run directly
+    private static class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final NeighborJoining state;
+        private final int from;
+        private final int to;
+
+        SortTask(NeighborJoining state, int from, int to) {
+            this.state = state;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if( to - from <= ROWS_PER_TASK ) {
+                for( int row=from; row<to; row++ ) {
+                    state.sortRow(row, SORTED_ENTRIES);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SortTask(state, from, mid), new SortTask(state, mid, to));
+        }
+    }
+
+    // SearchTask
+    //        - Searches a range of rows, splitting it in half until it is small enough to run directly
+    private static class SearchTask extends RecursiveTask<Candidate> {
+        private static final long serialVersionUID = 1L;
+
+        private final NeighborJoining state;
+        private final double factor;
+        private final double maxSum;
+        private final int seedRow;
+        private final Candidate seed;
+        private final int from;
+        private final int to;
+
+        SearchTask(NeighborJoining state, double factor, double maxSum, int seedRow, Candidate seed, int from, int to) {
+            this.state = state;
+            this.factor = factor;
+            this.maxSum = maxSum;
+            this.seedRow = seedRow;
+            this.seed = seed;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Candidate compute() {
+            if( to - from <= ROWS_PER_TASK ) {
+                Candidate best = new Candidate();
+                best.offer(seed.q, seed.i, seed.j);
+                for( int row=from; row<to; row++ ) {
+                    if( state.slots[row] != CompactTree.NONE && row != seedRow ) {
+                        state.searchRow(row, factor, maxSum, best);
+                    }
+                }
+                return best;
+            }
+            int mid = (from + to) >>> 1;
+            SearchTask low = new SearchTask(state, factor, maxSum, seedRow, seed, from, mid);
+            SearchTask high = new SearchTask(state, factor, maxSum, seedRow, seed, mid, to);
+            high.fork();
+            Candidate best = low.compute();
+            Candidate other = high.join();
+            best.offer(other.q, other.i, other.j);
+            best.reads += other.reads;
+            return best;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/* 
+ * PairwiseDistances.java
+ *
+ * Computes the distance between every pair of species in an alignment.
+ *
+ * Only the upper triangle (i < j) is computed, into a DistanceMatrix.
+ * The triangle is cut into square tiles of TILE x TILE species so each
+ * worker keeps a small block of sequences hot in cache, and the tiles are
+ * spread over a fork-join pool. Every entry is computed independently, so
+ * the result does not depend on the number of threads.
+ *
+ * Each distance is that of a DistanceMetric, the p-distance of
+ * Species.distance unless another is given. Large alignments are first
+ * compressed into their site patterns (see SitePatterns), so each pair
+ * only compares the distinct variable columns; the counts, and so the
+ * distances, are the same. Metrics that delete gaps per pair compare the
+ * sequences themselves, since a pattern's gaps differ from pair to pair.
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PairwiseDistances {
+    private static final int TILE = 64;             // Species per tile side
+    private static final int TILES_PER_TASK = 4;    // Tiles below which a task stops splitting
+
+    // STATIC
+
+    // compute
+    // Pre-conditions:
+    //        - species is a non-null array of aligned species
+    //        - numThreads is the number of worker threads to use (1 runs serially)
+    // Post-conditions:
+    //        - Returns a heap matrix holding Species.distance for every pair,
+    //          where slot i is species[i]
+    public static DistanceMatrix compute(Species[] species, int numThreads) {
+        DistanceMatrix matrix = new HeapDistanceMatrix(species.length);
+        compute(species, matrix, StandardDistanceMetric.P_DISTANCE, numThreads);
+        return matrix;
+    }
+
+    // compute
+    // Pre-conditions:
+    //        - species is a non-null array of aligned species
+    //        - matrix has species.length slots
+    //        - metric is the distance to compute
+    //        - numThreads is the number of worker threads to use (1 runs serially)
+    // Post-conditions:
+    //        - matrix holds metric.distance for every pair, where slot i is species[i]
+    //        - If two sequences are not the same length, or metric finds nothing to compare in a pair, an
+    //          IllegalArgumentException is thrown
+    public static void compute(Species[] species, DistanceMatrix matrix, DistanceMetric metric, int numThreads) {
+        compute(species, matrix, metric, numThreads, BuildMetrics.DISABLED);
+        return;
+    }
+
+    // compute
+    // Pre-conditions:
+    //        - species, matrix, metric and numThreads are as above
+    //        - metrics receives the distances written, added once per row of a tile
+    // Post-conditions:
+    //        - Same as above, with the writes counted in metrics
+    public static void compute(Species[] species, DistanceMatrix matrix, DistanceMetric metric, int numThreads,
+                               BuildMetrics metrics) {
+        int n = species.length;
+
+        // compares site patterns instead of whole sequences when that leaves fewer words per pair; below a tile
+        // of species there are too few pairs to pay for compressing
+        SitePatterns patterns = (n >= TILE && !metric.deletesGaps()) ? SitePatterns.compress(species) : null;
+
+        // enumerate the tiles on or above the diagonal
+        int numBlocks = (n + TILE - 1) / TILE;
+        int[] tiles = new int[numBlocks * (numBlocks + 1)];
+        int numTiles = 0;
+        for( int bi=0; bi<numBlocks; bi++ ) {
+            for( int bj=bi; bj<numBlocks; bj++ ) {
+                tiles[2*numTiles] = bi;
+                tiles[2*numTiles+1] = bj;
+                numTiles++;
+            }
+        }
+
+        TileTask task = new TileTask(species, patterns, metric, matrix, metrics, tiles, 0, numTiles);
+        if( numThreads <= 1 || numTiles == 1 ) {
+            task.compute();
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(numThreads);
+            try {
+                pool.invoke(task);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return;
+    }
+
+    // computeTile
+    // Pre-conditions:
+    //        - bi <= bj are block coordinates of a tile on or above the diagonal
+    //        - patterns is the compressed alignment of species, or null to compare the sequences themselves
+    // Post-conditions:
+    //        - Every pair (i,j), i < j, inside the tile has been filled in, and counted in metrics row by row
+    private static void computeTile(Species[] species, SitePatterns patterns, DistanceMetric metric,
+                                    DistanceMatrix matrix, BuildMetrics metrics, int bi, int bj) {
+        int n = species.length;
+        int iEnd = Math.min(n, (bi+1)*TILE);
+        int jEnd = Math.min(n, (bj+1)*TILE);
+        for( int i=bi*TILE; i<iEnd; i++ ) {
+            int jStart = (bi == bj) ? i+1 : bj*TILE;
+            for( int j=jStart; j<jEnd; j++ ) {
+                if( patterns != null ) {
+                    matrix.set(i, j, metric.distance(patterns.countMismatches(i, j), patterns.length()));
+                } else {
+                    matrix.set(i, j, metric.distance(species[i], species[j]));
+                }
+            }
+            metrics.add(BuildMetrics.Counter.MATRIX_WRITES, jEnd - jStart);
+        }
+    }
+
+    // TileTask
+    //        - Splits a range of tiles in half until it is small enough to run directly
+    private static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Species[] species;
+        private final SitePatterns patterns;
+        private final DistanceMetric metric;
+        private final DistanceMatrix matrix;
+        private final BuildMetrics metrics;
+        private final int[] tiles;
+        private final int from;
+        private final int to;
+
+        TileTask(Species[] species, SitePatterns patterns, DistanceMetric metric, DistanceMatrix matrix,
+                 BuildMetrics metrics, int[] tiles, int from, int to) {
+            this.species = species;
+            this.patterns = patterns;
+            this.metric = metric;
+            this.matrix = matrix;
+            this.metrics = metrics;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if( to - from <= TILES_PER_TASK ) {
+                for( int t=from; t<to; t++ ) {
+                    computeTile(species, patterns, metric, matrix, metrics, tiles[2*t], tiles[2*t+1]);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new TileTask(species, patterns, metric, matrix, metrics, tiles, from, mid),
+                      new TileTask(species, patterns, metric, matrix, metrics, tiles, mid, to));
+        }
+    }
+}
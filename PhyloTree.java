@@ -18,10 +18,15 @@ import java.io.*;
 
 public class PhyloTree {
     ArrayList<Species> allSpecies = new ArrayList<Species>(); // used for getAllSpecies()
-    public HashMap<String, PhyloTreeNode> forest = new HashMap<String, PhyloTreeNode>(); // initializes our forest of trees
-    private PhyloTreeNode overallRoot;    // The actual root of the overall tree
+    private CompactTree tree;             // The nodes of the overall tree, stored as arrays
     private int printingDepth;            // How many spaces to indent the deepest 
                                           // node when printing
+    private PhyloTreeOptions options;     // Settings used to build the tree
+    private HashMap<String, Integer> labelIndex = new HashMap<String, Integer>(); // maps the label of every leaf to its node id
+    private long[] internalLabelIndex = new long[0]; // label hash and node id of every non-terminal, sorted by hash
+    private LcaIndex lcaIndex;            // Node ids, weighted depths and least common ancestors of the built tree
+    private BuildMetrics metrics = BuildMetrics.DISABLED; // Phase timers and work counters of the build
+    private boolean hasResidues = true;   // False for a tree loaded from a snapshot saved without residues
 
     // CONSTRUCTOR
 
@@ -29,84 +34,228 @@ public class PhyloTree {
     //        - speciesFile contains the path of a valid FASTA input file
     //        - printingDepth is assumed as a positive number
 
-    //        - Creates a linked tree structure representing the inferred hierarchical
-    //          species relationship has been created, and overallRoot points to
-    //          the root of this tree
+    //        - Creates a tree structure representing the inferred hierarchical
+    //          species relationship, held as arrays in a CompactTree
+    //        - Throws an IOException if speciesFile cannot be read or is malformed
 
-    public PhyloTree(String speciesFile, int printingDepth) {
+    public PhyloTree(String speciesFile, int printingDepth) throws IOException {
+        this(speciesFile, printingDepth, new PhyloTreeOptions());
+    }
+
+    // PhyloTree
+    //        - speciesFile contains the path of a valid FASTA input file
+    //        - printingDepth is assumed as a positive number
+    //        - options holds the build settings (thread count, ...)
+
+    //        - Same as above, but the tree is built according to options
+
+    public PhyloTree(String speciesFile, int printingDepth, PhyloTreeOptions options) throws IOException {
+        this(speciesFile, printingDepth, options, BuildMetrics.DISABLED);
+    }
+
+    // PhyloTree
+    //        - speciesFile contains the path of a valid FASTA input file
+    //        - printingDepth is assumed as a positive number
+    //        - options holds the build settings (thread count, ...)
+    //        - metrics receives the timings and counters of the build, including the parsing of speciesFile
+
+    //        - Same as above, but the work done is recorded in metrics
+
+    public PhyloTree(String speciesFile, int printingDepth, PhyloTreeOptions options, BuildMetrics metrics) throws IOException {
+        this(loadSpeciesFile(speciesFile, metrics), printingDepth, options, metrics);
+    }
+
+    // PhyloTree
+    //        - species holds the aligned species to build the tree from
+    //        - printingDepth is assumed as a positive number
+    //        - options holds the build settings (thread count, ...)
+
+    //        - Same as above, but for species that are already loaded
+    //        - If two species have the same name, an IllegalArgumentException is thrown
+    //        - If the distance matrix is kept on disk and its files cannot be created, an UncheckedIOException is thrown
+
+    public PhyloTree(Species[] species, int printingDepth, PhyloTreeOptions options) {
+        this(species, printingDepth, options, BuildMetrics.DISABLED);
+    }
+
+    // PhyloTree
+    //        - species holds the aligned species to build the tree from
+    //        - printingDepth is assumed as a positive number
+    //        - options holds the build settings (thread count, ...)
+    //        - metrics receives the timings and counters of the build and of later queries
+
+    //        - Same as above, but the work done is recorded in metrics
+
+    public PhyloTree(Species[] species, int printingDepth, PhyloTreeOptions options, BuildMetrics metrics) {
+        this.printingDepth = printingDepth;
+        this.options = options;
+        this.metrics = metrics;
+        buildTree(species);        
+        indexLabels();
+    }
+
+    // PhyloTree
+    //        - snapshot holds a tree and its species loaded by TreeSnapshot.read
+    //        - printingDepth is assumed as a positive number
+    //        - Wraps the loaded tree without building anything; the query indexes are built on first use
+    private PhyloTree(TreeSnapshot snapshot, int printingDepth, PhyloTreeOptions options) {
         this.printingDepth = printingDepth;
-        buildTree(loadSpeciesFile(speciesFile));        
+        this.options = options;
+        this.tree = snapshot.getTree();
+        this.allSpecies = snapshot.getSpecies();
+        this.hasResidues = snapshot.hasResidues();
+        for (int id = 0; id < tree.size(); id++){
+           if (tree.isLeaf(id)){
+              labelIndex.put(tree.getLabel(id), id);
+           }
+        }
     }
 
     // ACCESSORS
 
-    //    - Returns the overall root
+    //    - Returns the overall root, as a read-only view onto the compact tree (null for an empty tree); its
+    //      setParent, and that of every node reached from it, throws UnsupportedOperationException
     public PhyloTreeNode getOverallRoot() {
-        return this.overallRoot;
+        return tree.node(tree.getRoot());
+    }
+
+    //    - Returns the array-backed form of the tree
+    public CompactTree getCompactTree() {
+        return tree;
     }
 
     //    - Returns a string representation of the tree starting at the overall root node
     public String toString() {       
-        return toString(getOverallRoot(), 0, getWeightedHeight());
+       StringBuilder stringbuild = new StringBuilder();
+       try {
+          appendTo(stringbuild);
+       } catch (IOException e){
+          throw new UncheckedIOException(e); // a StringBuilder never throws
+       }
+       return stringbuild.toString();
     }
 
-
-    // Assumptions:
-    //    - node points to the root of a tree you intend to print
-    //    - weightedDepth is the sum of the edge weights from the
-    //    - overall root to the current root
-    //    - maxDepth is the weighted depth of the overall tree
-
-    // Post-conditions:
-    //    - Returns a string representation of the subtree starting at the given node
-    private String toString(PhyloTreeNode node, double weightedDepth, double maxDepth) {
-        StringBuilder stringbuild = new StringBuilder();
-        
-        if (node.getRightChild() != null){
-           String addRightChild = toString(node.getRightChild(), weightedNodeDepth(node.getRightChild()), maxDepth);
-           stringbuild.append(addRightChild);
-        }
-        
-        int k = (int)(printingDepth * (weightedDepth / maxDepth));
-        while (k != 0){
-           stringbuild.append(".");
-           k--;
-        }
-        stringbuild.append(node.toString() + "\n");
-        
-        if (node.getLeftChild() != null){
-           String addLeftChild = toString(node.getLeftChild(), weightedNodeDepth(node.getLeftChild()), maxDepth);
-           stringbuild.append(addLeftChild);
-        }
-        
-        return stringbuild.toString();
+    //    - out is where the tree is written; for large trees, a buffered Writer avoids building the whole text in memory
+    //    - Writes the same text as toString() to out, one node per line: right subtree, node, left subtree, with each
+    //      node indented by printingDepth dots scaled by its weighted depth over the weighted height of the tree
+    //    - Runs in O(n): the walk is iterative, and weighted depths come from lcaIndex, where each child's is its parent's
+    //      plus the edge weight, instead of being summed again from the root for every node
+    //    - Writes nothing for an empty tree
+    public void appendTo(Appendable out) throws IOException {
+       int root = tree.getRoot();
+       if (root == CompactTree.NONE){
+          return;
+       }
+       // the weighted height, summed in the same order as the depths so that the deepest nodes get exactly printingDepth dots
+       double maxDepth = 0;
+       for (int id : index().preorder()){
+          maxDepth = Math.max(maxDepth, index().weightedDepth(id));
+       }
+       
+       // reverse in-order walk
+       int[] stack = new int[getHeight() + 1];
+       int top = 0;
+       int current = root;
+       StringBuilder line = new StringBuilder(printingDepth + 64);
+       while (current != CompactTree.NONE || top > 0){
+          if (current != CompactTree.NONE){
+             stack[top++] = current;
+             current = tree.getRight(current);
+          }else{
+             int node = stack[--top];
+             double weightedDepth = index().weightedDepth(node);
+             
+             line.setLength(0);
+             int k = (int)(printingDepth * (weightedDepth / maxDepth));
+             while (k > 0){
+                line.append('.');
+                k--;
+             }
+             if (tree.isLeaf(node)){
+                line.append(tree.getLabel(node));
+             }else{
+                line.append("[NONTERM ");
+                FixedPrecision.append(line, tree.getDistanceToChild(node), 2).append(']');
+             }
+             line.append('\n');
+             out.append(line);
+             
+             current = tree.getLeft(node);
+          }
+       }
     }
 
  
     //    - Returns a string representation in tree format starting at the overall root node
     public String toTreeString() {
-        return toTreeString(getOverallRoot());
+       StringBuilder stringbuild = new StringBuilder();
+       try {
+          writeNewick(stringbuild);
+       } catch (IOException e){
+          throw new UncheckedIOException(e); // a StringBuilder never throws
+       }
+       return stringbuild.toString();
     }
 
-
-    //    - Returns a string representation in tree format for a given subtree whose root is the node given
-    private String toTreeString(PhyloTreeNode node) {
-        StringBuilder stringbuild = new StringBuilder();
-        if (node.isLeaf()){
-           stringbuild.append(node.getLabel() + ":" + String.format("%.5f", node.getParent().getDistanceToChild())); 
-        }else{
-           stringbuild.append("(" + toTreeString(node.getRightChild()) + "," + toTreeString(node.getLeftChild()) + ")");
-           if (node != getOverallRoot()){
-           stringbuild.append(":" + String.format("%.5f", node.getParent().getDistanceToChild()));
-           } 
-        }
-        return stringbuild.toString();
+    //    - out is where the tree is written, typically a buffered Writer (which may wrap a GZIPOutputStream)
+    //    - Writes the same text as toTreeString() to out: each non-terminal as "(right,left)", each node other than
+    //      the root followed by ":" and the weight of the edge above it with 5 decimals, leaves by their labels
+    //    - Iterative, so caterpillar-shaped trees cannot overflow the call stack, and each character is written once
+    //    - Writes nothing for an empty tree, and just the label for a tree of one leaf
+    public void writeNewick(Appendable out) throws IOException {
+       int root = tree.getRoot();
+       if (root == CompactTree.NONE){
+          return;
+       }
+       final int COMMA = Integer.MIN_VALUE;
+       
+       // stack entries: a node id to open, COMMA, or ~id to close a non-terminal; each ancestor of the current node
+       // holds at most three entries (its closing entry, its left child and a comma)
+       int[] stack = new int[3 * getHeight() + 1];
+       int top = 0;
+       stack[top++] = root;
+       StringBuilder buffer = new StringBuilder(8192);
+       while (top > 0){
+          int entry = stack[--top];
+          if (entry == COMMA){
+             buffer.append(',');
+          }else if (entry >= 0 && !tree.isLeaf(entry)){
+             buffer.append('(');
+             stack[top++] = ~entry;
+             stack[top++] = tree.getLeft(entry);
+             stack[top++] = COMMA;
+             stack[top++] = tree.getRight(entry);
+          }else{
+             int node = (entry >= 0) ? entry : ~entry;
+             if (entry >= 0){
+                buffer.append(tree.getLabel(node));
+             }else{
+                buffer.append(')');
+             }
+             if (node != root){
+                buffer.append(':');
+                FixedPrecision.append(buffer, tree.getDistanceToChild(tree.getParent(node)), 5);
+             }
+          }
+          if (buffer.length() >= 8192){
+             out.append(buffer);
+             buffer.setLength(0);
+          }
+       }
+       out.append(buffer);
     }
 
 
     //    - Returns the tree height as defined in class
     public int getHeight() {
-       return nodeHeight(getOverallRoot()); 
+       if (tree.getRoot() == CompactTree.NONE){
+          return -1;
+       }
+       int height = 0;
+       for (int id : index().preorder()){
+          height = Math.max(height, index().depth(id));
+       }
+       return height; 
     }
     
 
@@ -114,7 +263,21 @@ public class PhyloTree {
 
     //    - Returns the sum of the edge weights along the "longest" (highest weight) path from the overall root to any leaf node.
     public double getWeightedHeight() {      
-        return weightedNodeHeight(getOverallRoot());
+        if (tree.getRoot() == CompactTree.NONE){
+           return java.lang.Double.NEGATIVE_INFINITY;
+        }
+        // children before parents, adding the edge weight to the heavier child exactly as weightedNodeHeight does
+        int[] preorder = index().preorder();
+        double[] heights = new double[tree.size()];
+        for (int i = preorder.length - 1; i >= 0; i--){
+           int id = preorder[i];
+           if (!tree.isLeaf(id)){
+              double weightLeft = tree.getDistanceToChild(id) + heights[tree.getLeft(id)];
+              double weightRight = tree.getDistanceToChild(id) + heights[tree.getRight(id)];
+              heights[id] = (weightLeft >= weightRight) ? weightLeft : weightRight;
+           }
+        }
+        return heights[tree.getRoot()];
     }
 
  
@@ -130,18 +293,26 @@ public class PhyloTree {
     }
 
  
-    //    - Returns an ArrayList containing all species in the tree
+    //    - Returns an ArrayList containing all species in the tree; for a tree loaded from a snapshot saved
+    //      without residues (see hasResidues()), their sequences are empty
     public java.util.ArrayList<Species> getAllSpecies() {
        return allSpecies;
     }
+
+    //    - Returns false if the tree was loaded from a snapshot saved without residues, so that its species have
+    //      no sequences and it can neither take new species nor be rebuilt
+    public boolean hasResidues() {
+       return hasResidues;
+    }
  
 
     //    - label is the label of a tree node you intend to find
     //    - Assumes labels are unique in the tree
-    //    - If found: returns the PhyloTreeNode with the specified label
+    //    - If found: returns the PhyloTreeNode with the specified label, a read-only view like getOverallRoot()'s
     //    - If not found: returns null
+    //    - Looks the label up in the index built when the tree was constructed
     public PhyloTreeNode findTreeNodeByLabel(String label) {
-       return findTreeNodeByLabel(getOverallRoot(), label);
+       return tree.node(findNodeId(label));
     }
 
 
@@ -150,43 +321,15 @@ public class PhyloTree {
     //    - If either node cannot be found: returns null
     //    - If both nodes can be found: returns the PhyloTreeNode of their common ancestor with the largest depth
      public PhyloTreeNode findLeastCommonAncestor(String label1, String label2) {
-        ArrayList<PhyloTreeNode> node1Ancestors = new ArrayList<PhyloTreeNode>(); // ArrayList containing ancestors of node 1
-        ArrayList<PhyloTreeNode> node2Ancestors = new ArrayList<PhyloTreeNode>(); // ArrayList containing ancestors of node 2
-                
-
-        // finds the nodes for our labels
-        PhyloTreeNode node1 = findTreeNodeByLabel(getOverallRoot(), label1);
-        PhyloTreeNode node2 = findTreeNodeByLabel(getOverallRoot(), label2);
+        // finds the node ids for our labels
+        int node1 = findNodeId(label1);
+        int node2 = findNodeId(label2);
         
-        if (node1 == null | node2 == null){
+        if (node1 == CompactTree.NONE | node2 == CompactTree.NONE){
            return null;
         }        
         
-        // nodeiterators so we can iterator through the parents of the nodes
-        PhyloTreeNode node1Iterator = node1;
-        PhyloTreeNode node2Iterator = node2;
-        
-        // populates node1Ancestor with all of node1's ancestors
-        while (node1Iterator.getParent() != null){
-           node1Ancestors.add
-           (node1Iterator.getParent());
-           node1Iterator = node1Iterator.getParent();
-        }
-        
-        node2Ancestors.add(node2Iterator.getParent());
-        node2Iterator = node2Iterator.getParent();
-        int i = 0;
-        
-        // check to see if each closest ancestor of node2 is also an ancestor of node1
-        while (!node1Ancestors.contains(node2Ancestors.get(0))){
-           node2Ancestors.remove(0);
-           node2Ancestors.add(node2Iterator.getParent());
-           node2Iterator = node2Iterator.getParent();
-           i++;   
-                
-        }
-               
-        return node2Ancestors.get(0);
+        return tree.node(index().leastCommonAncestor(node1, node2));
     }
     
     // findEvolutionaryDistance
@@ -195,115 +338,604 @@ public class PhyloTree {
     //    - If both nodes can be found: returns the sum of the weights  along the paths from their least common ancestor to each of the two nodes
      public double findEvolutionaryDistance(String label1, String label2) {
      
-        PhyloTreeNode node1 = findTreeNodeByLabel(label1);
-        PhyloTreeNode node2 = findTreeNodeByLabel(label2);
+        int node1 = findNodeId(label1);
+        int node2 = findNodeId(label2);
         
-        if (node1 == null | node2 == null){
+        if (node1 == CompactTree.NONE | node2 == CompactTree.NONE){
            return java.lang.Double.POSITIVE_INFINITY;
         }
         
-        PhyloTreeNode ancestor = findLeastCommonAncestor(node1, node2);
-        
-        double distance1 = 0;
-        while (!node1.getLabel().equals(ancestor.getLabel())){
-           node1 = node1.getParent();
-           distance1 += node1.getDistanceToChild();
-        }
-        
-        double distance2 = 0;
-        while (!node2.getLabel().equals(ancestor.getLabel())){
-           node2 = node2.getParent();
-           distance2 += node2.getDistanceToChild();
-        }
-        
-        return distance1+distance2;
+        // adds the path weights from each node up to their ancestor
+        return index().distance(node1, node2);
+    }
+
+    // getEvolutionaryDistanceMatrix
+    //    - Returns the evolutionary distance between every pair of species, as a square matrix whose rows and columns
+    //      follow the order of getAllSpecies(); entry [i][j] equals findEvolutionaryDistance for those two species
+    //    - Computed in O(n^2) with one pass over the internal nodes, children before parents: the leaves below a node
+    //      are a contiguous run of the pre-order walk, so each node adds its edge weight to the path weight of every
+    //      leaf below it, then fills in the pairs split between its left and right subtrees; the path weights are
+    //      added bottom-up, as findEvolutionaryDistance adds them, so both round alike
+    public double[][] getEvolutionaryDistanceMatrix() {
+       int numSpecies = allSpecies.size();
+       double[][] matrix = new double[numSpecies][numSpecies];
+       if (index().size() == 0){
+          return matrix;
+       }
+       
+       // numbers the leaves in pre-order, and finds the row of the species held by each leaf
+       int[] preorder = index().preorder();
+       int numLeaves = tree.getNumLeafs(tree.getRoot());
+       int[] leafsBefore = new int[tree.size()];
+       int numSeen = 0;
+       for (int id : preorder){
+          leafsBefore[id] = numSeen;
+          if (tree.isLeaf(id)){
+             numSeen++;
+          }
+       }
+       int[] rowOfLeaf = new int[numLeaves];
+       for (int i = 0; i < numSpecies; i++){
+          rowOfLeaf[leafsBefore[labelIndex.get(allSpecies.get(i).getName())]] = i;
+       }
+       
+       // fills in the pairs whose least common ancestor is each internal node; pathWeight[a] is the weight of the
+       // path from leaf a up to the node being processed
+       double[] pathWeight = new double[numLeaves];
+       for (int i = preorder.length - 1; i >= 0; i--){
+          int v = preorder[i];
+          if (tree.isLeaf(v)){
+             continue;
+          }
+          int leftStart = leafsBefore[v];
+          int rightStart = leftStart + tree.getNumLeafs(tree.getLeft(v));
+          int rightEnd = leftStart + tree.getNumLeafs(v);
+          for (int a = leftStart; a < rightEnd; a++){
+             pathWeight[a] += tree.getDistanceToChild(v);
+          }
+          for (int a = leftStart; a < rightStart; a++){
+             double[] rowA = matrix[rowOfLeaf[a]];
+             for (int b = rightStart; b < rightEnd; b++){
+                double dist = pathWeight[a] + pathWeight[b];
+                rowA[rowOfLeaf[b]] = dist;
+                matrix[rowOfLeaf[b]][rowOfLeaf[a]] = dist;
+             }
+          }
+       }
+       return matrix;
     }
 
     // MODIFIER
 
+    // insertSpecies
+    //    - s is a species aligned with the species already in the tree, whose name is not yet in the tree
+    //    - Adds s as a new leaf without rebuilding the tree: starting from the leaf closest to s, climbs while s is
+    //      at least as far (average linkage) from the subtree below as that subtree was from its sibling when
+    //      they were joined, then joins s to the subtree it stopped at, halfway along their average distance
+    //    - Costs one distance per leaf, instead of the full matrix and clustering of a rebuild; the result is the
+    //      tree UPGMA would build if s did not change any earlier merge, which rebuild() restores exactly
+    //    - The least common ancestor and label indexes are rebuilt on the next query that needs them, so a batch
+    //      of insertions pays for them once
+    //    - Throws an IllegalArgumentException, leaving the tree as it was, if a species named like s is already in
+    //      the tree or the distance metric cannot compare s with a leaf (see DistanceMetric.distance)
+    //    - Throws an IllegalStateException if the tree has no residues to compare s with (see hasResidues())
+    public void insertSpecies(Species s) {
+       requireResidues();
+       if (labelIndex.containsKey(s.getName())){
+          throw new IllegalArgumentException("Species already in the tree: " + s.getName());
+       }
+       // finds the distance from s to every leaf, and the closest leaf, before the tree changes
+       int root = tree.getRoot();
+       double[] distances = new double[tree.size()];
+       int closest = CompactTree.NONE;
+       if (root != CompactTree.NONE){
+          for (int id = tree.getFirstLeaf(root); id != CompactTree.NONE; id = tree.nextLeaf(id, root)){
+             distances[id] = options.getDistanceMetric().distance(s, tree.getSpecies(id));
+             metrics.add(BuildMetrics.Counter.DISTANCE_EVALUATIONS, 1);
+             if (closest == CompactTree.NONE || distances[id] < distances[closest]){
+                closest = id;
+             }
+          }
+       }
+       
+       int leaf = tree.addLeaf(s);
+       if (root == CompactTree.NONE){
+          tree.setRoot(leaf);
+       }else{
+          // climbs while s is no closer to the subtree than its sibling was, keeping the total distance to its leaves
+          int subtree = closest;
+          double total = distances[closest];
+          while (tree.getParent(subtree) != CompactTree.NONE
+                 && total / tree.getNumLeafs(subtree) >= 2 * tree.getDistanceToChild(tree.getParent(subtree))){
+             int parent = tree.getParent(subtree);
+             int sibling = (tree.getLeft(parent) == subtree) ? tree.getRight(parent) : tree.getLeft(parent);
+             for (int id = tree.getFirstLeaf(sibling); id != CompactTree.NONE; id = tree.nextLeaf(id, sibling)){
+                total += distances[id];
+             }
+             subtree = parent;
+          }
+          double weight = Math.max(total / tree.getNumLeafs(subtree) / 2, tree.getDistanceToChild(subtree));
+          tree.insertAbove(subtree, leaf, weight);
+          metrics.add(BuildMetrics.Counter.MERGES, 1);
+       }
+       labelIndex.put(s.getName(), leaf);
+       allSpecies.add(s);
+       lcaIndex = null;
+    }
+
+    // insertSpecies
+    //    - batch holds species as described above, with distinct names
+    //    - reoptimize chooses whether to rebuild the tree from scratch once the batch is in
+    //    - Inserts the species of batch one by one; if reoptimize is true, then calls rebuild()
+    public void insertSpecies(Species[] batch, boolean reoptimize) {
+       for (Species s : batch){
+          insertSpecies(s);
+       }
+       if (reoptimize){
+          rebuild();
+       }
+    }
+
+    // rebuild
+    //    - Builds the tree again from all of its species with the options it was built with, undoing the
+    //      approximations of insertSpecies
+    //    - Node views obtained before the call belong to the old tree
+    //    - Throws an IllegalStateException if the tree has no residues to build from (see hasResidues())
+    public void rebuild() {
+       requireResidues();
+       Species[] species = allSpecies.toArray(new Species[allSpecies.size()]);
+       allSpecies.clear();
+       buildTree(species);
+       indexLabels();
+    }
+
+    //    - Throws an IllegalStateException if the species of the tree have no residues
+    private void requireResidues() {
+       if (!hasResidues){
+          throw new IllegalStateException("snapshot saved without residues");
+       }
+    }
+
     //    - species contains the set of species for which you want to infer a phylogenetic tree
-    //    - Creates a linked tree structure representing the inferred hierarchical species relationship has been created, and overallRoot points to the root of said tree
+    //    - Creates the tree structure representing the inferred hierarchical species relationship in tree, one node id per cluster
     private void buildTree(Species[] species) {
-       MultiKeyMap<Double> Tdistances = new MultiKeyMap<Double>(); // initializes our tree Tdistances multikeymap
-       PhyloTreeNode Tree1 = null;
-       PhyloTreeNode Tree2 = null;       
+       tree = new CompactTree(2 * species.length - 1);
        
-       // creates a tree in the forest for each species with null parent
+       // creates a leaf for each species; names must be distinct, so that each species has its own leaf and row
+       HashSet<String> names = new HashSet<String>();
+       ArrayList<Species> leaves = new ArrayList<Species>();
        for (int i = 0; i < species.length; i++){
-          forest.put(species[i].getName(), new PhyloTreeNode(null, species[i]));
+          if (!names.add(species[i].getName())){
+             throw new IllegalArgumentException("Species named twice: " + species[i].getName());
+          }
+          leaves.add(species[i]);
           this.allSpecies.add(species[i]);
-
+       }
+       if (leaves.isEmpty()){
+          return;
+       }
+       
+       // clusters[i] is the id of the tree currently held in slot i of the distance matrix, or NONE once it was merged away
+       Species[] leafSpecies = leaves.toArray(new Species[leaves.size()]);
+       int[] clusters = new int[leafSpecies.length];
+       for (int i = 0; i < leafSpecies.length; i++){
+          clusters[i] = tree.addLeaf(leafSpecies[i]);
+       }
+       
+       // identical sequences share one slot when that leaves the tree unchanged: NJ counts every leaf in its row sums,
+       // and pairwise deletion also puts sequences that differ only at gaps at distance 0
+       int[][] groups = null;
+       int[] leafIds = null;
+       if (options.getDeduplicate() && (options.getBuildStrategy() == BuildStrategy.UPGMA
+                                        || options.getBuildStrategy() == BuildStrategy.UPGMA_NN_CHAIN)
+           && !options.getDistanceMetric().deletesGaps()){
+          groups = groupIdenticalSequences(leafSpecies);
+          if (groups.length < leafSpecies.length){
+             leafIds = clusters;
+             Species[] uniqueSpecies = new Species[groups.length];
+             int[] uniqueClusters = new int[groups.length];
+             for (int g = 0; g < groups.length; g++){
+                uniqueSpecies[g] = leafSpecies[groups[g][0]];
+                uniqueClusters[g] = clusters[groups[g][0]];
+             }
+             leafSpecies = uniqueSpecies;
+             clusters = uniqueClusters;
+          }else{
+             groups = null;
+          }
        }
        
-       // fills out our Tdistances map with the Tdistances between two trees
-       for (String key1 : forest.keySet()){
-          for (String key2 : forest.keySet()){
-             if (forest.get(key1) != forest.get(key2)){
-             // for the third parameter we need to have 2 species, so we get the species associated with the tree in forest hashmap
-             double dist = Species.distance(forest.get(key1).getSpecies(), forest.get(key2).getSpecies());
-             Tdistances.put(key1, key2, dist);
-             }         
+       if (options.getBuildStrategy() == BuildStrategy.UPGMA_SKETCH){
+          clusterBySketch(leafSpecies, clusters);
+       }else{
+          clusterByMatrix(leafSpecies, clusters, groups, leafIds);
+       }
+       metrics.add(BuildMetrics.Counter.MERGES, tree.size() - leaves.size());
+       
+       for (int id : clusters){
+          if (id != CompactTree.NONE){
+             tree.setRoot(id);
+          }
+       }
+    }
+    
+    //    - leafSpecies holds the species of the leaves in clusters, slot by slot
+    //    - groups and leafIds describe the identical sequences sharing a slot (see collapseDuplicates), or are null
+    //    - Computes every distance between the species and merges the trees in clusters into one by the strategy
+    //      of the options
+    private void clusterByMatrix(Species[] leafSpecies, int[] clusters, int[][] groups, int[] leafIds) {
+       // computes the upper triangle of distances between the species in parallel, on the heap or on disk
+       try (DistanceMatrix Tdistances = DistanceMatrix.create(leafSpecies.length, options.getDistanceStorage(),
+                                                              options.getTempDirectory())){
+          BuildMetrics.Timer distanceTimer = metrics.start(BuildMetrics.Phase.DISTANCES);
+          try {
+             PairwiseDistances.compute(leafSpecies, Tdistances, options.getDistanceMetric(), options.getNumThreads(), metrics);
+          } finally {
+             distanceTimer.close();
           }
-       }       
+          metrics.add(BuildMetrics.Counter.DISTANCE_EVALUATIONS, (long)leafSpecies.length * (leafSpecies.length - 1) / 2);
+          
+          // Consolidates the forest of trees into a single tree containing branched tree nodes
+          BuildMetrics.Timer clusteringTimer = metrics.start(BuildMetrics.Phase.CLUSTERING);
+          try {
+             if (groups != null){
+                collapseDuplicates(Tdistances, tree, leafIds, clusters, groups, metrics);
+             }
+             if (options.getBuildStrategy() == BuildStrategy.NEIGHBOR_JOINING){
+                NeighborJoining.cluster(Tdistances, tree, clusters, options.getNumThreads(), metrics);
+             }else if (options.getBuildStrategy() == BuildStrategy.UPGMA_NN_CHAIN){
+                clusterByNearestNeighbors(Tdistances, tree, clusters, metrics);
+             }else{
+                clusterByClosestPair(Tdistances, tree, clusters, metrics);
+             }
+          } finally {
+             clusteringTimer.close();
+          }
+       } catch (IOException e){
+          throw new UncheckedIOException("Unable to store the distance matrix: " + e.getMessage(), e);
+       }
+    }
+    
+    //    - leafSpecies holds the species of the leaves in clusters, slot by slot
+    //    - Computes the distances of the pairs that the MinHash sketches of the species find similar only, and
+    //      merges the trees in clusters into one by average linkage over them (see SparseDistances)
+    private void clusterBySketch(Species[] leafSpecies, int[] clusters) {
+       SparseDistances distances;
+       BuildMetrics.Timer distanceTimer = metrics.start(BuildMetrics.Phase.DISTANCES);
+       try {
+          distances = SparseDistances.compute(leafSpecies, options);
+       } finally {
+          distanceTimer.close();
+       }
+       metrics.add(BuildMetrics.Counter.DISTANCE_EVALUATIONS, (long)distances.getNumPairs() + distances.getNumSamples());
        
-       PhyloTreeNode Tnew = null;
-       // Consolidates the forest of trees into a single tree containing branched tree nodes
-       while (forest.size() > 1){
+       BuildMetrics.Timer clusteringTimer = metrics.start(BuildMetrics.Phase.CLUSTERING);
+       try {
+          SparseUpgma.cluster(distances, tree, clusters);
+       } finally {
+          clusteringTimer.close();
+       }
+    }
+    
+    //    - species holds the leaves of the tree, one per slot
+    //    - Returns the slots of the leaves grouped by identical residues, each group in increasing slot order and the
+    //      groups in order of their first slot
+    private static int[][] groupIdenticalSequences(Species[] species) {
+       // residues are hashed and compared in place, through buffers that wrap them
+       HashMap<java.nio.ByteBuffer, Integer> groupOf = new HashMap<java.nio.ByteBuffer, Integer>();
+       int[] groupOfSlot = new int[species.length];
+       int[] groupSize = new int[species.length];
+       for (int i = 0; i < species.length; i++){
+          java.nio.ByteBuffer residues = java.nio.ByteBuffer.wrap(species[i].getResidues());
+          Integer g = groupOf.get(residues);
+          if (g == null){
+             g = groupOf.size();
+             groupOf.put(residues, g);
+          }
+          groupOfSlot[i] = g;
+          groupSize[g]++;
+       }
+       int[][] groups = new int[groupOf.size()][];
+       for (int g = 0; g < groups.length; g++){
+          groups[g] = new int[groupSize[g]];
+          groupSize[g] = 0;
+       }
+       for (int i = 0; i < species.length; i++){
+          int g = groupOfSlot[i];
+          groups[g][groupSize[g]++] = i;
+       }
+       return groups;
+    }
+    
+    //    - leafIds[i] is the leaf of slot i of the groups, clusters[g] is leafIds[groups[g][0]], and Tdistances holds the distances between those leaves
+    //    - Turns each group of identical leaves into a subtree of zero-length edges in clusters[g], and its distances into
+    //      the ones clusterByClosestPair reaches after merging the group, so the rest of the build matches a build over
+    //      every leaf: identical leaves are the only pairs at distance 0, which are merged first, a group at a time in
+    //      order of first slot, each time joining the next leaf of the group to the tree of the ones before it; the
+    //      averages are rounded exactly as mergeClusters rounds them
+    //    - Counts the distances read and written in metrics, once per group
+    private static void collapseDuplicates(DistanceMatrix Tdistances, CompactTree tree, int[] leafIds, int[] clusters,
+                                           int[][] groups, BuildMetrics metrics) {
+       double[] row = new double[clusters.length];
+       for (int g = 0; g < groups.length; g++){
+          int size = groups[g].length;
+          if (size == 1){
+             continue;
+          }
+          int subtree = clusters[g];
+          for (int t = 1; t < size; t++){
+             int leaf = leafIds[groups[g][t]];
+             if (tree.compareLabels(subtree, leaf) > 0){
+                subtree = tree.addInternal(leaf, subtree, 0.0);
+             }else{
+                subtree = tree.addInternal(subtree, leaf, 0.0);
+             }
+          }
+          clusters[g] = subtree;
+          
+          Tdistances.getRow(g, row);
+          for (int k = 0; k < clusters.length; k++){
+             if (k == g){
+                continue;
+             }
+             double distance = row[k];
+             for (double count = 1; count < size; count++){
+                distance = (count / (count + 1)) * distance + (1 / (1 + count)) * row[k];
+             }
+             Tdistances.set(g, k, distance);
+          }
+          metrics.add(BuildMetrics.Counter.MATRIX_READS, clusters.length - 1);
+          metrics.add(BuildMetrics.Counter.MATRIX_WRITES, clusters.length - 1);
+       }
+    }
+    
+    //    - Tdistances holds the distances between the trees in clusters, slot by slot
+    //    - Repeatedly merges the two closest trees until a single tree is left in clusters
+    //    - Ties go to the lowest pair of slots
+    //    - Counts the distances read and written in metrics, once per scan and per merge
+    private static void clusterByClosestPair(DistanceMatrix Tdistances, CompactTree tree, int[] clusters,
+                                             BuildMetrics metrics) {
+       double[] row1 = new double[clusters.length];
+       double[] row2 = new double[clusters.length];
+       for (int merges = 1; merges < clusters.length; merges++){
           // finds the two trees with the smallest distance between them
           double minDistance = java.lang.Double.POSITIVE_INFINITY;
-          for (String key1 : forest.keySet()){
-             for (String key2 : forest.keySet()){
-                if (forest.get(key1) != forest.get(key2) && Tdistances.get(key1, key2) < minDistance){
-                   minDistance = Tdistances.get(forest.get(key1).getLabel(), forest.get(key2).getLabel());
-                   if (key1.compareTo(key2) <= 0){
-                      Tree1 = forest.get(key1);
-                      Tree2 = forest.get(key2);
-                   }else{
-                      Tree1 = forest.get(key2);
-                      Tree2 = forest.get(key1);
+          int slot1 = -1;
+          int slot2 = -1;
+          for (int i = 0; i < clusters.length; i++){
+             if (clusters[i] == CompactTree.NONE){
+                continue;
+             }
+             for (int j = i + 1; j < clusters.length; j++){
+                if (clusters[j] != CompactTree.NONE){
+                   double distance = Tdistances.get(i, j);
+                   if (distance < minDistance){
+                      minDistance = distance;
+                      slot1 = i;
+                      slot2 = j;
                    }
                 }
              }   
           }
+          // every pair of the k trees left was read once
+          long remaining = clusters.length - merges + 1;
+          metrics.add(BuildMetrics.Counter.MATRIX_READS, remaining * (remaining - 1) / 2);
+          mergeClusters(Tdistances, tree, clusters, slot1, slot2, minDistance, row1, row2, metrics);
+       }
+    }
+
+    //    - Tdistances holds the distances between the trees in clusters, slot by slot
+    //    - Makes the same merges as clusterByClosestPair, in the same order, so it builds the same tree: each slot
+    //      keeps its nearest neighbor among the slots above it (ties go to the lowest slot), and the closest pair is
+    //      the lowest slot with the smallest distance to its neighbor, which is the pair the full rescan finds
+    //    - After a merge only the merged slot and the slots whose neighbor was one of the two merged trees are
+    //      rescanned; the other slots below the merged one compare their neighbor with the new tree. This is O(n^2)
+    //      unless many slots keep losing their neighbor, and O(n^3) at worst
+    //    - Counts the distances read in metrics
+    private static void clusterByNearestNeighbors(DistanceMatrix Tdistances, CompactTree tree, int[] clusters,
+                                                  BuildMetrics metrics) {
+       double[] row1 = new double[clusters.length];
+       double[] row2 = new double[clusters.length];
+       int[] neighbor = new int[clusters.length];
+       double[] neighborDistance = new double[clusters.length];
+       for (int i = 0; i < clusters.length; i++){
+          findNeighbor(Tdistances, clusters, i, neighbor, neighborDistance, metrics);
+       }
+       
+       for (int merges = 1; merges < clusters.length; merges++){
+          // finds the lowest slot with the smallest distance to its neighbor
+          double minDistance = java.lang.Double.POSITIVE_INFINITY;
+          int slot1 = -1;
+          for (int i = 0; i < clusters.length; i++){
+             if (clusters[i] != CompactTree.NONE && neighborDistance[i] < minDistance){
+                minDistance = neighborDistance[i];
+                slot1 = i;
+             }
+          }
+          int slot2 = neighbor[slot1];
+          mergeClusters(Tdistances, tree, clusters, slot1, slot2, minDistance, row1, row2, metrics);
           
-          // removes the two trees from the forest
-          forest.remove(Tree1.getLabel());
-          forest.remove(Tree2.getLabel());
-          
-          // Puts the new PhyloTreeNode into the forest 
-          Tnew = new PhyloTreeNode(Tree1.getLabel() + Tree2.getLabel(), null, Tree1, Tree2, minDistance/2.0);    
-          forest.put(Tree1.getLabel() + Tree2.getLabel(), Tnew);
-          
-          // sets the parents of the copy of our tree nodes
-          Tree1.setParent(Tnew);
-          Tree2.setParent(Tnew);
-          
-          // Calculates the distance of the new tree to all of the other trees in the forest
-          double count1 = Tree1.getNumLeafs();
-          double count2 = Tree2.getNumLeafs();
-         
-          for (String key : forest.keySet()){
-                if (!key.equals(Tnew.getLabel())){
-                   //System.out.println(Tdistances.get(key, Tree1.getLabel()));
-                   double TotherT1 = Tdistances.get(key, Tree1.getLabel());
-                   //Tdistances.remove(key, Tree1.getLabel());
-                   double TotherT2 = Tdistances.get(key, Tree2.getLabel());
-                   //Tdistances.remove(key, Tree2.getLabel());
-                                     
-                   double dist1 = ((count1 / (count1 + count2)) * TotherT1);
-                   double dist2 = ((count2 / (count2 + count1)) * TotherT2);
-                   double Tdist = dist1 + dist2;             
-                   Tdistances.put(Tnew.getLabel(), key, Tdist);
+          // slot1 holds the new tree and slot2 is empty: only the neighbors of the slots below slot2 can change
+          findNeighbor(Tdistances, clusters, slot1, neighbor, neighborDistance, metrics);
+          long reads = 0;
+          for (int i = 0; i < slot2; i++){
+             if (clusters[i] == CompactTree.NONE || i == slot1){
+                continue;
+             }
+             if (neighbor[i] == slot1 || neighbor[i] == slot2){
+                findNeighbor(Tdistances, clusters, i, neighbor, neighborDistance, metrics);
+             }else if (i < slot1){
+                double distance = Tdistances.get(i, slot1);
+                reads++;
+                if (distance < neighborDistance[i] || (distance == neighborDistance[i] && slot1 < neighbor[i])){
+                   neighbor[i] = slot1;
+                   neighborDistance[i] = distance;
                 }
+             }
           }
-          
-          this.overallRoot = Tnew;
+          metrics.add(BuildMetrics.Counter.MATRIX_READS, reads);
+       }
+    }
+    
+    //    - Tdistances holds the distances between the trees in clusters, slot by slot, and slot i holds a tree
+    //    - Sets neighbor[i] to the lowest slot above i whose tree is closest to the tree in slot i, and
+    //      neighborDistance[i] to their distance; neighbor[i] is -1 and neighborDistance[i] is infinite when no
+    //      slot above i is closer than infinity
+    //    - Counts the distances read in metrics
+    private static void findNeighbor(DistanceMatrix Tdistances, int[] clusters, int i, int[] neighbor,
+                                     double[] neighborDistance, BuildMetrics metrics) {
+       neighbor[i] = -1;
+       neighborDistance[i] = java.lang.Double.POSITIVE_INFINITY;
+       long reads = 0;
+       for (int j = i + 1; j < clusters.length; j++){
+          if (clusters[j] != CompactTree.NONE){
+             double distance = Tdistances.get(i, j);
+             reads++;
+             if (distance < neighborDistance[i]){
+                neighborDistance[i] = distance;
+                neighbor[i] = j;
+             }
+          }
+       }
+       metrics.add(BuildMetrics.Counter.MATRIX_READS, reads);
+    }
+
+    //    - Tdistances holds the distances between the trees in clusters, slot by slot
+    //    - slot1 and slot2 are the slots of two trees to merge, and minDistance is their distance
+    //    - Merges the two trees under a new node of tree held in the lower of the two slots, empties the other slot and
+    //      computes the distance of the new tree to all of the other trees as the leaf-weighted average of its children's distances
+    //    - row1 and row2 are scratch arrays of clusters.length elements, used to read the rows of the two trees in bulk
+    //    - Counts the distances read and written in metrics, once per merge
+    private static void mergeClusters(DistanceMatrix Tdistances, CompactTree tree, int[] clusters, int slot1, int slot2, double minDistance,
+                                      double[] row1, double[] row2, BuildMetrics metrics) {
+       int slotNew = Math.min(slot1, slot2);
+       int slotOld = Math.max(slot1, slot2);
+       
+       // the tree with the alphabetically smaller label becomes the left child
+       int Tree1 = clusters[slot1];
+       int Tree2 = clusters[slot2];
+       int slotTree1 = slot1;
+       int slotTree2 = slot2;
+       if (tree.compareLabels(Tree1, Tree2) > 0){
+          Tree1 = clusters[slot2];
+          Tree2 = clusters[slot1];
+          slotTree1 = slot2;
+          slotTree2 = slot1;
+       }
+       
+       int Tnew = tree.addInternal(Tree1, Tree2, minDistance/2.0);    
+       
+       // Calculates the distance of the new tree to all of the other trees in the forest
+       double count1 = tree.getNumLeafs(Tree1);
+       double count2 = tree.getNumLeafs(Tree2);
+       Tdistances.getRow(slotTree1, row1);
+       Tdistances.getRow(slotTree2, row2);
        
-       } 
+       int writes = 0;
+       for (int k = 0; k < clusters.length; k++){
+          if (clusters[k] != CompactTree.NONE && k != slot1 && k != slot2){
+             double TotherT1 = row1[k];
+             double TotherT2 = row2[k];
+             
+             double dist1 = ((count1 / (count1 + count2)) * TotherT1);
+             double dist2 = ((count2 / (count2 + count1)) * TotherT2);
+             Tdistances.set(slotNew, k, dist1 + dist2);
+             writes++;
+          }
+       }
+       metrics.add(BuildMetrics.Counter.MATRIX_READS, 2L * (clusters.length - 1));
+       metrics.add(BuildMetrics.Counter.MATRIX_WRITES, writes);
+       
+       clusters[slotNew] = Tnew;
+       clusters[slotOld] = CompactTree.NONE;
+    }
+
+    //    - Returns lcaIndex, first rebuilding the indexes if the tree changed since they were built
+    private LcaIndex index() {
+       if (lcaIndex == null){
+          indexLabels();
+       }
+       return lcaIndex;
+    }
+
+    //    - Rebuilds lcaIndex for the current tree, labelIndex for its leaves and internalLabelIndex for its non-terminals
+    //    - Non-terminal labels are indexed by their hash only, so no label string is built
+    private void indexLabels() {
+       BuildMetrics.Timer timer = metrics.start(BuildMetrics.Phase.INDEXING);
+       try {
+          buildIndexes();
+       } finally {
+          timer.close();
+       }
+    }
+
+    //    - Does the work of indexLabels
+    private void buildIndexes() {
+       lcaIndex = new LcaIndex(tree);
+       labelIndex.clear();
+       int[] preorder = lcaIndex.preorder();
+       internalLabelIndex = new long[preorder.length - (preorder.length + 1) / 2];
+       int numInternal = 0;
+       for (int id : preorder){
+          if (tree.isLeaf(id)){
+             labelIndex.put(tree.getLabel(id), id);
+          }else{
+             internalLabelIndex[numInternal++] = ((long)tree.getLabelHashCode(id) << 32) | id;
+          }
+       }
+       Arrays.sort(internalLabelIndex);
+    }
+
+    //    - Returns the id of the node labelled label, or CompactTree.NONE if there is none
+    //    - Leaves are looked up by name; non-terminals by the hash of label, confirming each candidate against its leaf names
+    private int findNodeId(String label) {
+       metrics.add(BuildMetrics.Counter.LABEL_LOOKUPS, 1);
+       index();
+       Integer id = labelIndex.get(label);
+       if (id != null){
+          return id;
+       }
+       long key = (long)label.hashCode() << 32;
+       int pos = Arrays.binarySearch(internalLabelIndex, key);
+       if (pos < 0){
+          pos = -pos - 1;
+       }
+       for (; pos < internalLabelIndex.length && (internalLabelIndex[pos] & 0xFFFFFFFF00000000L) == key; pos++){
+          int candidate = (int)internalLabelIndex[pos];
+          if (tree.labelEquals(candidate, label)){
+             return candidate;
+          }
+       }
+       return CompactTree.NONE;
+    }
+
+    // saveSnapshot
+    //    - file is the path to write; key identifies the input the tree was built from (see TreeSnapshot.key)
+    //    - residues is true if the sequences are saved too, so that the loaded tree can take new species or be rebuilt
+    //    - Saves the tree and its species so that loadSnapshot can restore them without building anything
+    //    - Throws an IllegalStateException if residues is true but the tree has none to save (see hasResidues())
+    public void saveSnapshot(File file, byte[] key, boolean residues) throws IOException {
+       if (residues){
+          requireResidues();
+       }
+       TreeSnapshot.write(file, tree, allSpecies, key, residues);
     }
 
     // STATIC
 
+    // loadSnapshot
+    //    - file is the path of a snapshot written by saveSnapshot; key identifies the input the tree is wanted for
+    //    - printingDepth is assumed as a positive number, and options holds the settings used by later rebuilds
+    //    - Returns the saved tree, or null if there is no snapshot for key in file
+    //    - Throws an IOException if file cannot be read or is malformed
+    public static PhyloTree loadSnapshot(File file, byte[] key, int printingDepth, PhyloTreeOptions options) throws IOException {
+       TreeSnapshot snapshot = TreeSnapshot.read(file, key);
+       if (snapshot == null){
+          return null;
+       }
+       return new PhyloTree(snapshot, printingDepth, options);
+    }
+
     //    - node is null or the root of tree (possibly subtree)
     //    - If null: returns -1
     //    - Else: returns the depth of the node within the overall tree
@@ -375,68 +1007,30 @@ public class PhyloTree {
 
 
     //    - filename contains the path of a valid FASTA input file
-    //    - Creates and returns an array of species objects representing all valid species in the input file
+    //    - Creates and returns an array of species objects representing all valid species in the input file, in file order
     //    - Species without names are skipped
-    public static Species[] loadSpeciesFile(String filename) {
+    //    - Throws an IOException if the file cannot be read, or a FastaFormatException if it is malformed
+    public static Species[] loadSpeciesFile(String filename) throws IOException {
+        return loadSpeciesFile(filename, BuildMetrics.DISABLED);
+    }
+
+    //    - Same as above, timing the parsing as the PARSE phase of metrics
+    public static Species[] loadSpeciesFile(String filename, BuildMetrics metrics) throws IOException {
         ArrayList<Species> loadIn = new ArrayList<Species>(); // ArrayList which loads in all of our Species
-        ArrayList<String> speciesName = new ArrayList<String>(); // ArrayList of species names
-        ArrayList<String> sequence = new ArrayList<String>(); // ArrayList for the sequences
-        String array[];
-        
-        try{        
-        Scanner input = new Scanner(new File(filename));
-        Scanner input2 = new Scanner (new File(filename)); //2 scanners becomes helpful later for checking the line after the one we are on
-        String line = input.nextLine();
-        String lineNext = input2.nextLine();
-        lineNext = input2.nextLine();
         
-        // runs through the whole file
-        while (input.hasNextLine()){
-        
-        // if there's a ref in the line, grab the sequence and name
-           if (line.contains("ref")){ // if we are on a ref index
-              array = line.split("\\|");
-              speciesName.add(array[6]);  
-              String sequencebuild = "";  
-              while (!lineNext.contains(">") && input.hasNextLine()){
-                 line = input.nextLine();
-                 if (input2.hasNextLine()){
-                    lineNext = input2.nextLine();
-                 }
-                 sequencebuild += line;
-                 line = "";
-              }
-              sequence.add(sequencebuild);
-           
-           }
-           // continue along the lines with the scanner if we did not incur a ref   
-           else{
-              line = input.nextLine();
-              if (input2.hasNextLine()){
-                 lineNext = input2.nextLine();
-              }
+        // streams the records out of the file one species at a time
+        BuildMetrics.Timer timer = metrics.start(BuildMetrics.Phase.PARSE);
+        try (FastaReader reader = new FastaReader(filename)){
+           Species species = reader.next();
+           while (species != null){
+              loadIn.add(species);
+              species = reader.next();
            }
-        } 
-                                      
-           // creates the species and adds it to the master arraylist of species
-           for (int i = 0; i < sequence.size(); i++){
-              String temp[] = sequence.get(i).split("");
-              Species species = new Species(speciesName.get(i), temp);
-              loadIn.add(species);               
-           }
-
-        
-        
-        }catch(FileNotFoundException ex){
+        } finally {
+           timer.close();
         }
         
-        //transfers the master species arraylist into an array        
-        Species result[] = new Species[loadIn.size()];
-        for (int i = 0; i < loadIn.size(); i++){
-           result[i] = loadIn.get(i);
-        }
-                
-        return result;
+        return loadIn.toArray(new Species[loadIn.size()]);
     }
 
 
@@ -451,66 +1045,5 @@ public class PhyloTree {
           getAllDescendantSpecies(node.getLeftChild(), descendants);
           getAllDescendantSpecies(node.getRightChild(), descendants);                
        }      
-    }   
-    
-
-    //    - node points to a node in a phylogenetic tree structure
-    //    - label is the label of a tree node that you intend to locate
-    //    - If no node with the label exists in the subtree, return null
-    private static PhyloTreeNode findTreeNodeByLabel(PhyloTreeNode node, String label) {
-      if (node.getLabel().equals(label)) {
-         return node;
-      }
-      if (node.isLeaf()) {
-         return null;
-      } 
-      else {
-         PhyloTreeNode left = findTreeNodeByLabel(node.getLeftChild(), label);
-         PhyloTreeNode right = findTreeNodeByLabel(node.getRightChild(), label);
-      
-         if (left != null) {
-            return left;
-         } 
-         else {
-            return right;
-         }
-      }
-
-    }
-
-    //    - Assume node1 and node2 point to nodes in the phylogenetic tree
-    //    - If node1 or node2 are null, return null
-    //    - Else: returns the PhyloTreeNode of their common ancestor with the largest depth
-     private static PhyloTreeNode findLeastCommonAncestor(PhyloTreeNode node1, PhyloTreeNode node2) {
-        ArrayList<PhyloTreeNode> node1Ancestors = new ArrayList<PhyloTreeNode>(); // ArrayList containing ancestors of node 1
-        ArrayList<PhyloTreeNode> node2Ancestors = new ArrayList<PhyloTreeNode>(); // ArrayList containing ancestors of node 2
-        
-        // return null if either node is null       
-        if (node1 == null | node2 == null){
-           return null;
-        }
-        if (node1.getLabel().equals(node2.getLabel())){
-           return node1;
-        }
-               
-        // populates node1Ancestor with all of node1's ancestors
-        while (node1.getParent() != null){
-           node1Ancestors.add(node1.getParent());
-           node1 = node1.getParent();
-        }
-        
-        node2Ancestors.add(node2.getParent());
-        node2 = node2.getParent();                   
-        int i = 0;
-        
-        // check to see if each closest ancestor of node2 is also an ancestor of node1
-        while (!node1Ancestors.contains(node2Ancestors.get(i))){
-           node2Ancestors.add(node2.getParent());
-           node2 = node2.getParent();
-           i++;   
-                
-        }
-               
-        return node2Ancestors.get(i);
     }
 }
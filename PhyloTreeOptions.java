@@ -0,0 +1,238 @@
+/* 
+ * PhyloTreeOptions.java
+ *
+ * Collects the settings that control how a PhyloTree is built.
+ * A default-constructed object reproduces the behaviour of the 
+ * original two-argument PhyloTree constructor.
+ *
+ */
+
+public class PhyloTreeOptions {
+    private int numThreads;           // Worker threads used for the all-pairs distance phase
+    private BuildStrategy strategy;   // Clustering algorithm used to build the tree
+    private DistanceStorage storage;  // Where the pairwise distance matrix is kept during the build
+    private java.io.File tempDir;     // Directory for memory-mapped distance files, or null for the system default
+    private boolean deduplicate;      // Whether identical sequences share one slot while clustering
+    private DistanceMetric metric;    // Distance between two species that the tree is built on
+    private int kmerLength;           // Residues per k-mer of the UPGMA_SKETCH sketches
+    private int sketchSize;           // Bins per UPGMA_SKETCH signature
+    private int sketchBands;          // Bands the UPGMA_SKETCH signatures are cut into
+
+    // CONSTRUCTOR
+
+    // PhyloTreeOptions
+    // Pre-conditions:
+    //      - None
+    // Post-conditions:
+    //      - Options are created with their default values:
+    //        one thread per available processor, the UPGMA strategy, and
+    //        distances kept on the heap unless they would not fit,
+    //        identical sequences clustered once, the p-distance, and
+    //        sketches of 128 bins of 6-mers in 64 bands for UPGMA_SKETCH
+    public PhyloTreeOptions() {
+        this.numThreads = Runtime.getRuntime().availableProcessors();
+        this.strategy = BuildStrategy.UPGMA;
+        this.storage = DistanceStorage.AUTO;
+        this.tempDir = null;
+        this.deduplicate = true;
+        this.metric = StandardDistanceMetric.P_DISTANCE;
+        this.kmerLength = 6;
+        this.sketchSize = 128;
+        this.sketchBands = 64;
+        return;
+    }
+
+    // ACCESSORS
+
+    // getNumThreads
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of worker threads used to build the tree
+    public int getNumThreads() {
+        return this.numThreads;
+    }
+
+    // getBuildStrategy
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the clustering algorithm used to build the tree
+    public BuildStrategy getBuildStrategy() {
+        return this.strategy;
+    }
+
+    // getDistanceStorage
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns where the pairwise distance matrix is kept while the tree is built
+    public DistanceStorage getDistanceStorage() {
+        return this.storage;
+    }
+
+    // getTempDirectory
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the directory for memory-mapped distance files, or null for the system temporary directory
+    public java.io.File getTempDirectory() {
+        return this.tempDir;
+    }
+
+    // getDeduplicate
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns true if identical sequences are collapsed into one slot while clustering, then expanded again
+    //          as subtrees of zero-length edges
+    public boolean getDeduplicate() {
+        return this.deduplicate;
+    }
+
+    // getDistanceMetric
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the distance between two species that the tree is built on
+    public DistanceMetric getDistanceMetric() {
+        return this.metric;
+    }
+
+    // getKmerLength
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of residues per k-mer in the sketches of the UPGMA_SKETCH strategy
+    public int getKmerLength() {
+        return this.kmerLength;
+    }
+
+    // getSketchSize
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of bins of each sketch of the UPGMA_SKETCH strategy
+    public int getSketchSize() {
+        return this.sketchSize;
+    }
+
+    // getSketchBands
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of bands the sketches are cut into to find candidate pairs (see MinHashSketch)
+    public int getSketchBands() {
+        return this.sketchBands;
+    }
+
+    // getFingerprint
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns a string naming every setting that changes the tree built from a given input; settings
+    //          that only change how fast or where it is built (threads, storage, deduplication) are left out
+    //        - Two options with the same fingerprint build the same tree, so TreeSnapshot keys snapshots by it
+    public String getFingerprint() {
+        String fingerprint = "strategy=" + this.strategy.name() + ",metric=" + this.metric.getName();
+        if( this.strategy == BuildStrategy.UPGMA_SKETCH ) {
+            fingerprint += ",sketch=" + this.kmerLength + "/" + this.sketchSize + "/" + this.sketchBands;
+        }
+        return fingerprint;
+    }
+
+    // MODIFIERS
+
+    // setNumThreads
+    // Pre-conditions:
+    //        - numThreads is a positive number; 1 runs everything on the calling thread
+    // Post-conditions:
+    //        - Sets the number of worker threads used to build the tree
+    //        - If numThreads is not positive, an IllegalArgumentException is thrown
+    public void setNumThreads(int numThreads) {
+        if( numThreads < 1 ) {
+            throw new IllegalArgumentException("numThreads must be positive: " + numThreads);
+        }
+        this.numThreads = numThreads;
+        return;
+    }
+
+    // setBuildStrategy
+    // Pre-conditions:
+    //        - strategy is a non-null BuildStrategy
+    // Post-conditions:
+    //        - Sets the clustering algorithm used to build the tree
+    public void setBuildStrategy(BuildStrategy strategy) {
+        if( strategy == null ) {
+            throw new IllegalArgumentException("strategy must not be null");
+        }
+        this.strategy = strategy;
+        return;
+    }
+
+    // setDistanceStorage
+    // Pre-conditions:
+    //        - storage is a non-null DistanceStorage
+    // Post-conditions:
+    //        - Sets where the pairwise distance matrix is kept while the tree is built
+    public void setDistanceStorage(DistanceStorage storage) {
+        if( storage == null ) {
+            throw new IllegalArgumentException("storage must not be null");
+        }
+        this.storage = storage;
+        return;
+    }
+
+    // setTempDirectory
+    // Pre-conditions:
+    //        - tempDir is an existing directory on a local disk with room for the distance matrix, or null
+    // Post-conditions:
+    //        - Sets the directory for memory-mapped distance files (null for the system temporary directory)
+    public void setTempDirectory(java.io.File tempDir) {
+        this.tempDir = tempDir;
+        return;
+    }
+
+    // setDistanceMetric
+    // Pre-conditions:
+    //        - metric is a non-null DistanceMetric
+    // Post-conditions:
+    //        - Sets the distance between two species that the tree is built on
+    public void setDistanceMetric(DistanceMetric metric) {
+        if( metric == null ) {
+            throw new IllegalArgumentException("metric must not be null");
+        }
+        this.metric = metric;
+        return;
+    }
+
+    // setSketch
+    // Pre-conditions:
+    //        - kmerLength, sketchSize and bands are positive, and bands divides sketchSize
+    // Post-conditions:
+    //        - Sets the sketches of the UPGMA_SKETCH strategy: longer k-mers and fewer bands (more bins per band)
+    //          compare fewer pairs, faster but missing more of the distant ones; a larger sketch makes the
+    //          similarity estimates less noisy at the cost of sketching time
+    //        - If the settings are not as above, an IllegalArgumentException is thrown
+    public void setSketch(int kmerLength, int sketchSize, int bands) {
+        if( kmerLength < 1 || sketchSize < 1 || bands < 1 || sketchSize % bands != 0 ) {
+            throw new IllegalArgumentException("Sketch settings must be positive, with bands dividing the size: "
+                                               + kmerLength + "/" + sketchSize + "/" + bands);
+        }
+        this.kmerLength = kmerLength;
+        this.sketchSize = sketchSize;
+        this.sketchBands = bands;
+        return;
+    }
+
+    // setDeduplicate
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Sets whether identical sequences are clustered once; the tree is the same either way
+    //        - Only the UPGMA and UPGMA_NN_CHAIN strategies collapse them, since their trees are known to be unchanged
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+        return;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * SitePatterns.java
+ *
+ * Compresses an alignment into its site patterns for the all-pairs
+ * distance phase. A column is a site; its pattern is the residue of every
+ * species at that site. Columns with the same pattern always agree or
+ * differ for the same pairs, so each distinct pattern is compared once
+ * and counted as many times as it occurs (its weight). Constant columns
+ * can never differ and are dropped.
+ *
+ * Patterns of equal weight are grouped into classes, and each class is
+ * bit-sliced like Species.bitSlice, so a pair is compared 64 patterns at a
+ * time and each class's count is multiplied by its weight once. The
+ * mismatch count, and so the distance, is exactly that of
+ * Species.distance; only the work per pair shrinks, with the number of
+ * variable patterns instead of the number of columns.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class SitePatterns {
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;  // Odd multiplier of the column hashes
+
+    private final int length;                 // Number of columns of the alignment
+    private final int numPatterns;            // Number of distinct variable columns
+    private final int numConstant;            // Number of constant columns, which are skipped
+    private final int[] classWeight;          // Columns per pattern of each class
+    private final int[] classStart;           // First plane word of each class, followed by the end of the last
+    private final long[][] planes;            // planes[s] holds the patterns of species s, bit-sliced class by class
+
+    // CONSTRUCTOR
+
+    //    - Wraps a compressed alignment
+    private SitePatterns(int length, int numPatterns, int numConstant, int[] classWeight, int[] classStart,
+                         long[][] planes) {
+        this.length = length;
+        this.numPatterns = numPatterns;
+        this.numConstant = numConstant;
+        this.classWeight = classWeight;
+        this.classStart = classStart;
+        this.planes = planes;
+        return;
+    }
+
+    // ACCESSORS
+
+    // length
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of columns of the alignment
+    public int length() {
+        return this.length;
+    }
+
+    // getNumPatterns
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of distinct variable columns that are compared
+    public int getNumPatterns() {
+        return this.numPatterns;
+    }
+
+    // getNumConstantColumns
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of columns where every species has the same residue
+    public int getNumConstantColumns() {
+        return this.numConstant;
+    }
+
+    // getPlanesLength
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of words compared per pair, fewer than Species.planesLength(length())
+    public int getPlanesLength() {
+        return this.classStart[this.classStart.length - 1];
+    }
+
+    // countMismatches
+    // Pre-conditions:
+    //        - i and j are indexes of species in the compressed alignment
+    // Post-conditions:
+    //        - Returns the number of columns where species i and j differ
+    public int countMismatches(int i, int j) {
+        long[] planes1 = this.planes[i];
+        long[] planes2 = this.planes[j];
+        int numDiffs = 0;
+        for( int k=0; k<this.classWeight.length; k++ ) {
+            numDiffs += this.classWeight[k]
+                        * Species.countMismatches(planes1, planes2, this.classStart[k], this.classStart[k+1]);
+        }
+        return numDiffs;
+    }
+
+    // distance
+    // Pre-conditions:
+    //        - i and j are indexes of species in the compressed alignment
+    // Post-conditions:
+    //        - Returns the fraction of columns where species i and j differ, equal to Species.distance
+    public double distance(int i, int j) {
+        return ((double)countMismatches(i, j))/this.length;
+    }
+
+    // STATIC
+
+    // compress
+    // Pre-conditions:
+    //        - species is a non-null array of species
+    // Post-conditions:
+    //        - Returns the site patterns of the alignment, where species index i is species[i]
+    //        - Returns null if there are fewer than two species, if the sequences are not all the same length
+    //          (Species.distance reports that), if a residue code is outside 0..127, or if the patterns would
+    //          take as many words per pair as the sequences themselves; only hashing and sorting the columns
+    //          is wasted then
+    public static SitePatterns compress(Species[] species) {
+        int n = species.length;
+        if( n < 2 ) {
+            return null;
+        }
+        int length = species[0].length();
+        for( Species s : species ) {
+            if( s.length() != length ) {
+                return null;
+            }
+        }
+
+        // hashes every column and marks the variable ones, a species at a time so the sequences are read in order
+        byte[] first = species[0].getResidues();
+        long[] hash = new long[length];
+        boolean[] variable = new boolean[length];
+        for( int s=0; s<n; s++ ) {
+            byte[] residues = species[s].getResidues();
+            for( int c=0; c<length; c++ ) {
+                hash[c] = hash[c] * HASH_MULTIPLIER + residues[c];
+                variable[c] |= (residues[c] != first[c]);
+            }
+        }
+
+        // sorts the variable columns by the high half of their hash, then splits each run of equal hashes into
+        // patterns, confirming every column against the pattern it joins; weight[p] counts the columns of pattern p
+        long[] byHash = new long[length];
+        int numVariable = 0;
+        for( int c=0; c<length; c++ ) {
+            if( variable[c] ) {
+                byHash[numVariable++] = (mix(hash[c]) & 0xFFFFFFFF00000000L) | c;
+            }
+        }
+        int numConstant = length - numVariable;
+        Arrays.sort(byHash, 0, numVariable);
+        ArrayList<Integer> firstColumn = new ArrayList<Integer>();
+        ArrayList<Integer> weight = new ArrayList<Integer>();
+        for( int run=0; run<numVariable; ) {
+            int runEnd = run + 1;
+            while( runEnd < numVariable && (byHash[runEnd] >>> 32) == (byHash[run] >>> 32) ) {
+                runEnd++;
+            }
+            int runPatterns = weight.size();
+            for( int k=run; k<runEnd; k++ ) {
+                int c = (int)byHash[k];
+                int p = runPatterns;
+                while( p < weight.size() && !sameColumn(species, firstColumn.get(p), c) ) {
+                    p++;
+                }
+                if( p == weight.size() ) {
+                    firstColumn.add(c);
+                    weight.add(0);
+                }
+                weight.set(p, weight.get(p) + 1);
+            }
+            run = runEnd;
+        }
+
+        // orders the patterns by weight, so each class of equal weight is contiguous
+        int numPatterns = weight.size();
+        long[] byWeight = new long[numPatterns];
+        for( int p=0; p<numPatterns; p++ ) {
+            byWeight[p] = ((long)weight.get(p) << 32) | p;
+        }
+        Arrays.sort(byWeight);
+        int[] columnOrder = new int[numPatterns];
+        ArrayList<Integer> classFirst = new ArrayList<Integer>();
+        ArrayList<Integer> classWeights = new ArrayList<Integer>();
+        for( int k=0; k<numPatterns; k++ ) {
+            int w = (int)(byWeight[k] >>> 32);
+            columnOrder[k] = firstColumn.get((int)byWeight[k]);
+            if( k == 0 || w != classWeights.get(classWeights.size() - 1) ) {
+                classFirst.add(k);
+                classWeights.add(w);
+            }
+        }
+        int numClasses = classWeights.size();
+        int[] classWeight = new int[numClasses];
+        int[] classStart = new int[numClasses + 1];
+        for( int k=0; k<numClasses; k++ ) {
+            int classEnd = (k + 1 < numClasses) ? classFirst.get(k + 1) : numPatterns;
+            classWeight[k] = classWeights.get(k);
+            classStart[k + 1] = classStart[k] + Species.planesLength(classEnd - classFirst.get(k));
+        }
+
+        if( classStart[numClasses] >= Species.planesLength(length) ) {
+            return null;
+        }
+
+        // bit-slices the patterns of each species, class by class
+        long[][] planes = new long[n][];
+        byte[] codes = new byte[numPatterns];
+        for( int s=0; s<n; s++ ) {
+            byte[] residues = species[s].getResidues();
+            for( int k=0; k<numPatterns; k++ ) {
+                codes[k] = residues[columnOrder[k]];
+            }
+            planes[s] = new long[classStart[numClasses]];
+            for( int k=0; k<numClasses; k++ ) {
+                int classEnd = (k + 1 < numClasses) ? classFirst.get(k + 1) : numPatterns;
+                if( !Species.bitSlice(codes, classFirst.get(k), classEnd, planes[s], classStart[k]) ) {
+                    return null;
+                }
+            }
+        }
+        return new SitePatterns(length, numPatterns, numConstant, classWeight, classStart, planes);
+    }
+
+    //    - Returns h with every bit mixed into the high half (the finalizer of MurmurHash3), since the last
+    //      species of a column only reach the low bits of its running hash
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    //    - Returns true if columns c1 and c2 hold the same residue for every species
+    private static boolean sameColumn(Species[] species, int c1, int c2) {
+        for( Species s : species ) {
+            byte[] residues = s.getResidues();
+            if( residues[c1] != residues[c2] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
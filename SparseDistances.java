@@ -0,0 +1,241 @@
+/*
+ * SparseDistances.java
+ *
+ * The distances of an approximate build (BuildStrategy.UPGMA_SKETCH):
+ * instead of all n(n-1)/2 pairs, only the candidate pairs that
+ * MinHashSketch finds similar are compared, with the exact distance of
+ * the DistanceMetric. Every other pair is taken to be at one fill
+ * distance, the mean distance of a random sample of pairs that are not
+ * candidates. SparseUpgma clusters the result; its tree approximates the
+ * UPGMA tree of the matrix with every missing pair set to the fill
+ * distance.
+ *
+ * The cost is one sketch per species and one distance per candidate and
+ * sample, O(n L + c L) for c candidates instead of O(n^2 L). Sketching
+ * and comparing are spread over a fork-join pool; every result is
+ * computed independently and the sample is drawn from a fixed seed, so
+ * the distances do not depend on the number of threads.
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SparseDistances {
+    private static final int ITEMS_PER_TASK = 256;      // Species or pairs below which a task stops splitting
+    private static final long SAMPLE_SEED = 1;          // Seed of the pairs sampled for the fill distance
+
+    private final Species[] species;        // Species of each index
+    private final DistanceMetric metric;    // Distance computed for each pair
+    private final int kmerLength;           // Residues per k-mer of the sketches
+    private final int sketchSize;           // Bins per signature
+    private final int[][] signatures;       // Signature of each species
+    private long[] pairs;                   // Candidate pairs, (i << 32) | j with i < j, sorted
+    private double[] distances;             // Distance of each candidate pair
+    private double fill;                    // Distance of every pair that is not a candidate
+    private int numSamples;                 // Pairs sampled for the fill distance
+
+    // CONSTRUCTOR
+
+    //    - Creates the empty distances of species
+    private SparseDistances(Species[] species, DistanceMetric metric, int kmerLength, int sketchSize) {
+        this.species = species;
+        this.metric = metric;
+        this.kmerLength = kmerLength;
+        this.sketchSize = sketchSize;
+        this.signatures = new int[species.length][];
+        return;
+    }
+
+    // ACCESSORS
+
+    // size
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of species
+    public int size() {
+        return this.species.length;
+    }
+
+    // getNumPairs
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of candidate pairs whose distance was computed
+    public int getNumPairs() {
+        return this.pairs.length;
+    }
+
+    // getPair
+    // Pre-conditions:
+    //        - 0 <= k < getNumPairs()
+    // Post-conditions:
+    //        - Returns candidate pair k as (i << 32) | j, where i < j are species indexes; pairs are sorted
+    public long getPair(int k) {
+        return this.pairs[k];
+    }
+
+    // getDistance
+    // Pre-conditions:
+    //        - 0 <= k < getNumPairs()
+    // Post-conditions:
+    //        - Returns the distance of candidate pair k
+    public double getDistance(int k) {
+        return this.distances[k];
+    }
+
+    // getNumSamples
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of other pairs whose distance was computed to estimate the fill distance
+    public int getNumSamples() {
+        return this.numSamples;
+    }
+
+    // getFillDistance
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the distance assumed for every pair that is not a candidate
+    public double getFillDistance() {
+        return this.fill;
+    }
+
+    // STATIC
+
+    // compute
+    // Pre-conditions:
+    //        - species is a non-null array of aligned species, at most MinHashSketch.MAX_SPECIES of them
+    //        - options holds the distance metric and sketch settings
+    // Post-conditions:
+    //        - Returns the distances of the candidate pairs of species, where index i is species[i], and the fill
+    //          distance of the others
+    //        - If two compared sequences are not the same length, or the metric finds nothing to compare in a
+    //          pair, an IllegalArgumentException is thrown
+    public static SparseDistances compute(Species[] species, PhyloTreeOptions options) {
+        SparseDistances result = new SparseDistances(species, options.getDistanceMetric(), options.getKmerLength(),
+                                                     options.getSketchSize());
+        int numThreads = options.getNumThreads();
+        result.run(new SketchTask(result, 0, species.length), numThreads);
+        result.pairs = MinHashSketch.candidatePairs(result.signatures, options.getSketchBands());
+        result.distances = new double[result.pairs.length];
+        result.run(new DistanceTask(result, result.pairs, result.distances, 0, result.pairs.length), numThreads);
+        result.fill = result.sampleFill(numThreads);
+        return result;
+    }
+
+    //    - Runs task on the calling thread, or on a pool of numThreads threads
+    private void run(RecursiveAction task, int numThreads) {
+        if( numThreads <= 1 ) {
+            task.invoke();
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+        return;
+    }
+
+    //    - Returns the mean distance of up to n random pairs that are not candidates, or the largest candidate
+    //      distance if every pair is one
+    private double sampleFill(int numThreads) {
+        int n = this.species.length;
+        double largest = 0;
+        for( double d : this.distances ) {
+            largest = Math.max(largest, d);
+        }
+        long numSamples = Math.min(n, (long)n * (n - 1) / 2 - this.pairs.length);
+        if( numSamples <= 0 ) {
+            return largest;
+        }
+        long[] sample = new long[(int)numSamples];
+        this.numSamples = sample.length;
+        Random random = new Random(SAMPLE_SEED);
+        for( int s=0; s<sample.length; ) {
+            int i = random.nextInt(n);
+            int j = random.nextInt(n);
+            if( i == j ) {
+                continue;
+            }
+            long pair = ((long)Math.min(i, j) << 32) | Math.max(i, j);
+            if( Arrays.binarySearch(this.pairs, pair) < 0 ) {
+                sample[s++] = pair;
+            }
+        }
+        double[] sampleDistances = new double[sample.length];
+        run(new DistanceTask(this, sample, sampleDistances, 0, sample.length), numThreads);
+        double total = 0;
+        for( double d : sampleDistances ) {
+            total += d;
+        }
+        return total / sample.length;
+    }
+
+    // SketchTask
+    //        - Sketches a range of species, splitting it in half until it is small enough to run directly
+    private static class SketchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SparseDistances state;
+        private final int from;
+        private final int to;
+
+        SketchTask(SparseDistances state, int from, int to) {
+            this.state = state;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if( to - from <= ITEMS_PER_TASK ) {
+                for( int i=from; i<to; i++ ) {
+                    state.signatures[i] = MinHashSketch.sketch(state.species[i].getResidues(), state.kmerLength,
+                                                               state.sketchSize);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SketchTask(state, from, mid), new SketchTask(state, mid, to));
+        }
+    }
+
+    // DistanceTask
+    //        - Computes the distances of a range of pairs, splitting it in half until it is small enough to run directly
+    private static class DistanceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SparseDistances state;
+        private final long[] pairs;
+        private final double[] distances;
+        private final int from;
+        private final int to;
+
+        DistanceTask(SparseDistances state, long[] pairs, double[] distances, int from, int to) {
+            this.state = state;
+            this.pairs = pairs;
+            this.distances = distances;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if( to - from <= ITEMS_PER_TASK ) {
+                for( int k=from; k<to; k++ ) {
+                    distances[k] = state.metric.distance(state.species[(int)(pairs[k] >>> 32)],
+                                                         state.species[(int)pairs[k]]);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new DistanceTask(state, pairs, distances, from, mid),
+                      new DistanceTask(state, pairs, distances, mid, to));
+        }
+    }
+}
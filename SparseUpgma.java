@@ -0,0 +1,264 @@
+/*
+ * SparseUpgma.java
+ *
+ * Average-linkage (UPGMA) clustering over the sparse distances of an
+ * approximate build (see SparseDistances). Each tree keeps a small hash
+ * map from the slots of the trees it has a known distance to; every other
+ * tree is at the fill distance. A merge replaces the two maps by one
+ * holding the leaf-weighted average of both, where a tree missing from
+ * one side counts at the fill distance.
+ *
+ * The merges follow a chain of nearest neighbors, with ties ordered as
+ * PhyloTree's UPGMA strategies order them: (distance, lower slot, higher
+ * slot). Finding the nearest neighbor of a tree scans its map, and only
+ * looks past it for the lowest tree missing from it when nothing in it is
+ * closer than the fill distance. The merges are therefore approximately
+ * those of UPGMA on the full matrix with every missing pair at the fill
+ * distance: the chain merges in a different order than UPGMA, so averages
+ * may round differently and a near-tie may go the other way. With every
+ * pair known they are likewise approximately those of the UPGMA_NN_CHAIN
+ * strategy. Memory and time grow with the number of known pairs, not with
+ * n^2.
+ *
+ */
+
+import java.util.Arrays;
+
+public class SparseUpgma {
+
+    // STATIC
+
+    // cluster
+    // Pre-conditions:
+    //        - distances holds the candidate distances between the trees in clusters, where index i of distances
+    //          is slot i of clusters
+    // Post-conditions:
+    //        - Merges the trees until a single tree is left in clusters, each merge holding the lower of its two
+    //          slots; the child with the smaller label is on the left, and a merge at distance d has weight d/2
+    public static void cluster(SparseDistances distances, CompactTree tree, int[] clusters) {
+        int n = clusters.length;
+        double fill = distances.getFillDistance();
+        NeighborMap[] neighbors = new NeighborMap[n];
+        for( int i=0; i<n; i++ ) {
+            neighbors[i] = new NeighborMap();
+        }
+        for( int k=0; k<distances.getNumPairs(); k++ ) {
+            int i = (int)(distances.getPair(k) >>> 32);
+            int j = (int)distances.getPair(k);
+            neighbors[i].put(j, distances.getDistance(k));
+            neighbors[j].put(i, distances.getDistance(k));
+        }
+
+        // nextAlive[s] leads to the lowest slot at or after s still in use, skipping merged slots in jumps
+        int[] nextAlive = new int[n + 1];
+        for( int s=0; s<=n; s++ ) {
+            nextAlive[s] = s;
+        }
+        int[] chain = new int[n];
+        int chainSize = 0;
+        int remaining = n;
+        while( remaining > 1 ) {
+            // starts a new chain at the lowest slot still in use
+            if( chainSize == 0 ) {
+                chain[chainSize++] = findAlive(nextAlive, 0);
+            }
+
+            // finds the nearest neighbor of the tree at the end of the chain among the trees it knows
+            int a = chain[chainSize - 1];
+            NeighborMap map = neighbors[a];
+            int nearest = -1;
+            double minDistance = Double.POSITIVE_INFINITY;
+            for( int e=0; e<map.capacity(); e++ ) {
+                int x = map.keyAt(e);
+                if( x != NeighborMap.FREE
+                    && (map.valueAt(e) < minDistance || (map.valueAt(e) == minDistance && x < nearest)) ) {
+                    minDistance = map.valueAt(e);
+                    nearest = x;
+                }
+            }
+
+            // unless one of them is closer, the nearest is the lowest tree at the fill distance
+            if( minDistance >= fill ) {
+                int x = findAlive(nextAlive, 0);
+                while( x < n && (x == a || map.contains(x)) ) {
+                    x = findAlive(nextAlive, x + 1);
+                }
+                if( x < n && (fill < minDistance || x < nearest) ) {
+                    minDistance = fill;
+                    nearest = x;
+                }
+            }
+
+            // merges reciprocal nearest neighbors, otherwise extends the chain
+            if( chainSize > 1 && chain[chainSize - 2] == nearest ) {
+                chainSize -= 2;
+                merge(tree, clusters, neighbors, fill, a, nearest, minDistance);
+                nextAlive[Math.max(a, nearest)] = Math.max(a, nearest) + 1;
+                remaining--;
+            } else {
+                chain[chainSize++] = nearest;
+            }
+        }
+        return;
+    }
+
+    //    - Returns the lowest slot at or after s still in use (n if there is none), shortening the jumps on the way
+    private static int findAlive(int[] nextAlive, int s) {
+        int alive = s;
+        while( nextAlive[alive] != alive ) {
+            alive = nextAlive[alive];
+        }
+        while( nextAlive[s] != alive ) {
+            int next = nextAlive[s];
+            nextAlive[s] = alive;
+            s = next;
+        }
+        return alive;
+    }
+
+    //    - Merges the trees of slot1 and slot2 at distance d into the lower slot, as PhyloTree.mergeClusters does,
+    //      and gives the new tree the averaged distances of both to their known neighbors
+    private static void merge(CompactTree tree, int[] clusters, NeighborMap[] neighbors, double fill,
+                              int slot1, int slot2, double d) {
+        int slotNew = Math.min(slot1, slot2);
+        int slotOld = Math.max(slot1, slot2);
+
+        // the tree with the alphabetically smaller label becomes the left child
+        int slotTree1 = slot1;
+        int slotTree2 = slot2;
+        if( tree.compareLabels(clusters[slot1], clusters[slot2]) > 0 ) {
+            slotTree1 = slot2;
+            slotTree2 = slot1;
+        }
+        int tree1 = clusters[slotTree1];
+        int tree2 = clusters[slotTree2];
+        int merged = tree.addInternal(tree1, tree2, d/2.0);
+
+        double count1 = tree.getNumLeafs(tree1);
+        double count2 = tree.getNumLeafs(tree2);
+        NeighborMap map1 = neighbors[slotTree1];
+        NeighborMap map2 = neighbors[slotTree2];
+        NeighborMap mergedMap = new NeighborMap();
+        for( int pass=0; pass<2; pass++ ) {
+            NeighborMap from = (pass == 0) ? map1 : map2;
+            for( int e=0; e<from.capacity(); e++ ) {
+                int k = from.keyAt(e);
+                if( k == NeighborMap.FREE || k == slot1 || k == slot2 || (pass == 1 && map1.contains(k)) ) {
+                    continue;
+                }
+                double d1 = map1.getOrFill(k, fill);
+                double d2 = map2.getOrFill(k, fill);
+                double distance = ((count1 / (count1 + count2)) * d1) + ((count2 / (count2 + count1)) * d2);
+                mergedMap.put(k, distance);
+                neighbors[k].remove(slot1);
+                neighbors[k].remove(slot2);
+                neighbors[k].put(slotNew, distance);
+            }
+        }
+
+        neighbors[slotNew] = mergedMap;
+        neighbors[slotOld] = null;
+        clusters[slotNew] = merged;
+        clusters[slotOld] = CompactTree.NONE;
+        return;
+    }
+
+    // NeighborMap
+    //        - Distances from one tree to the slots of its known neighbors, in an open-addressing table with linear
+    //          probing; removal shifts the following entries back, so lookups never meet a deleted entry
+    private static class NeighborMap {
+        static final int FREE = -1;
+
+        private int[] keys;
+        private double[] values;
+        private int size;
+
+        NeighborMap() {
+            this.keys = new int[4];
+            this.values = new double[4];
+            Arrays.fill(this.keys, FREE);
+        }
+
+        int capacity() {
+            return this.keys.length;
+        }
+
+        int keyAt(int e) {
+            return this.keys[e];
+        }
+
+        double valueAt(int e) {
+            return this.values[e];
+        }
+
+        boolean contains(int key) {
+            return this.keys[find(key)] == key;
+        }
+
+        double getOrFill(int key, double fill) {
+            int e = find(key);
+            return (this.keys[e] == key) ? this.values[e] : fill;
+        }
+
+        void put(int key, double value) {
+            if( 2 * (this.size + 1) > this.keys.length ) {
+                grow();
+            }
+            int e = find(key);
+            if( this.keys[e] != key ) {
+                this.keys[e] = key;
+                this.size++;
+            }
+            this.values[e] = value;
+        }
+
+        void remove(int key) {
+            int e = find(key);
+            if( this.keys[e] != key ) {
+                return;
+            }
+            int mask = this.keys.length - 1;
+            this.keys[e] = FREE;
+            this.size--;
+            // moves back every later entry of the run that would no longer be found past the hole
+            for( int next=(e + 1) & mask; this.keys[next] != FREE; next=(next + 1) & mask ) {
+                int home = slotOf(this.keys[next]);
+                if( ((next - home) & mask) >= ((next - e) & mask) ) {
+                    this.keys[e] = this.keys[next];
+                    this.values[e] = this.values[next];
+                    this.keys[next] = FREE;
+                    e = next;
+                }
+            }
+        }
+
+        //    - Returns the entry holding key, or the free entry where it would go
+        private int find(int key) {
+            int mask = this.keys.length - 1;
+            int e = slotOf(key);
+            while( this.keys[e] != FREE && this.keys[e] != key ) {
+                e = (e + 1) & mask;
+            }
+            return e;
+        }
+
+        private int slotOf(int key) {
+            int h = key * 0x9E3779B1;
+            return (h ^ (h >>> 16)) & (this.keys.length - 1);
+        }
+
+        private void grow() {
+            int[] oldKeys = this.keys;
+            double[] oldValues = this.values;
+            this.keys = new int[2 * oldKeys.length];
+            this.values = new double[2 * oldKeys.length];
+            this.size = 0;
+            Arrays.fill(this.keys, FREE);
+            for( int e=0; e<oldKeys.length; e++ ) {
+                if( oldKeys[e] != FREE ) {
+                    put(oldKeys[e], oldValues[e]);
+                }
+            }
+        }
+    }
+}
@@ -2,9 +2,20 @@
  * Species.java
  *
  * Defines a new "Species" type, which stores the information associated
- * with a species
+ * with a species: its name and its aligned sequence.
  *
- * This class has been implemented for you. You may not modify it.
+ * The sequence is kept packed, one byte per residue (see encodeResidue);
+ * the one-string-per-residue form of getSequence is decoded on demand.
+ * Sequences of at least BIT_SLICE_MIN_LENGTH residues are also bit-sliced
+ * into planes of 64 columns (see bitSlice), with a mask of their gap
+ * columns (see isGap and gapMask), so the mismatch kernels compare 64
+ * columns per word instead of one.
+ *
+ * The static methods are the distance primitives the build is made of:
+ * distance (the p-distance), countSites (compared and differing columns,
+ * with or without the gap columns, for the other DistanceMetrics),
+ * countMismatches over bytes or bit-planes, and checkAligned, which
+ * rejects sequences of different lengths with an IllegalArgumentException.
  * 
  * Brian Hutchinson
  * Feb 2016
@@ -12,10 +23,16 @@
  */
 
 public class Species {
+    private static final int PLANES = 7;                  // Bit-planes per block of 64 columns, one per bit of a code
+    private static final int BIT_SLICE_MIN_LENGTH = 32;   // Shortest sequence that is bit-sliced
+
     private String name;          // A unique name associated with the species
-    private String[] sequence;    // The biological sequence describing this species
+    private byte[] residues;      // The biological sequence, encoded as one byte per residue
+    private String[] sequence;    // The sequence as one string per residue (built on demand)
+    private long[] planes;        // The residues bit-sliced for distance, or null (see bitSlice)
+    private long[] gaps;          // One bit per gap column, a word per block of planes, or null (see gapMask)
 
-    // CONSTRUCTOR
+    // CONSTRUCTORS
 
     // Species
     // Preconditions:
@@ -25,9 +42,30 @@ public class Species {
     //       in the genetic sequence 
     // Post-conditions
     //     - The object's fields are set to the provided values
+    //     - The sequence is stored in its encoded form (see encodeResidue)
     public Species(String name, String[] sequence) {
         this.name = name;
-        this.sequence = sequence;
+        this.residues = new byte[sequence.length];
+        for( int i=0; i<sequence.length; i++ ) {
+            this.residues[i] = sequence[i].isEmpty() ? 0 : encodeResidue(sequence[i].charAt(0));
+        }
+        this.planes = bitSlice(this.residues);
+        this.gaps = (this.planes == null) ? null : gapMask(this.residues);
+        return;
+    }
+
+    // Species
+    // Preconditions:
+    //     - name is the intended name of the species
+    //     - residues is a positive-length array of encoded residues
+    //       (see encodeResidue); the array is not copied
+    // Post-conditions
+    //     - The object's fields are set to the provided values
+    public Species(String name, byte[] residues) {
+        this.name = name;
+        this.residues = residues;
+        this.planes = bitSlice(residues);
+        this.gaps = (this.planes == null) ? null : gapMask(residues);
         return;
     }
 
@@ -46,13 +84,75 @@ public class Species {
     // Pre-conditions:
     //        - None
     // Post-conditions:
-    //        - Returns the sequence
+    //        - Returns the sequence, one single-character string per residue
+    //        - The array is decoded from the residues on the first call and cached
     public String[] getSequence() {
+        if( this.sequence == null ) {
+            String[] decoded = new String[this.residues.length];
+            for( int i=0; i<decoded.length; i++ ) {
+                decoded[i] = String.valueOf(decodeResidue(this.residues[i]));
+            }
+            this.sequence = decoded;
+        }
         return this.sequence;
     }
 
+    // getResidues
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the encoded sequence, one byte per residue
+    //        - The array is shared with this object and must not be modified
+    public byte[] getResidues() {
+        return this.residues;
+    }
+
+    // length
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the number of residues in the sequence
+    public int length() {
+        return this.residues.length;
+    }
+
     // STATIC
 
+    // encodeResidue
+    // Pre-conditions:
+    //        - c is a character of a sequence
+    // Post-conditions:
+    //        - Returns the one-byte code of c: ASCII characters map to
+    //          themselves, anything else maps to the code of '?'
+    public static byte encodeResidue(char c) {
+        if( c < 128 ) {
+            return (byte)c;
+        }
+        return (byte)'?';
+    }
+
+    // decodeResidue
+    // Pre-conditions:
+    //        - code was produced by encodeResidue
+    // Post-conditions:
+    //        - Returns the character represented by code
+    public static char decodeResidue(byte code) {
+        return (char)(code & 0xFF);
+    }
+
+    // encodeSequence
+    // Pre-conditions:
+    //        - sequence is a non-null string of residues
+    // Post-conditions:
+    //        - Returns a new array holding the code of each character of sequence
+    public static byte[] encodeSequence(CharSequence sequence) {
+        byte[] codes = new byte[sequence.length()];
+        for( int i=0; i<codes.length; i++ ) {
+            codes[i] = encodeResidue(sequence.charAt(i));
+        }
+        return codes;
+    }
+
     // distance
     // Pre-conditions:
     //        - a and b are two non-null Species objects
@@ -61,23 +161,247 @@ public class Species {
     //        - Returns the fraction of sequence elements
     //          that are different
     //        - If the sequences are not the same length,
-    //          it reports and error and exits
+    //          an IllegalArgumentException is thrown
+    //        - Long sequences are compared 64 columns at a time on their
+    //          bit-planes (see bitSlice); with assertions enabled, every such
+    //          count is checked against the column-by-column one
+    //        - This is the p-distance of DistanceMetric; the other metrics
+    //          start from countSites
     public static double distance(Species a, Species b) {
-        String[] seq1 = a.getSequence();
-        String[] seq2 = b.getSequence();
+        byte[] seq1 = a.residues;
+        byte[] seq2 = b.residues;
     
-        if( seq1.length != seq2.length ) {
-            System.err.println("Error: Sequences must already be aligned");
-            System.exit(5);
-        } 
+        checkAligned(a, b);
         
+        int numDiffs;
+        if( a.planes != null && b.planes != null ) {
+            numDiffs = countMismatches(a.planes, b.planes);
+            assert numDiffs == countMismatches(seq1, seq2) : "bit-sliced count differs for " + a.name + ", " + b.name;
+        } else {
+            numDiffs = countMismatches(seq1, seq2);
+        }
+        
+        return ((double)numDiffs)/seq1.length;
+    }
+
+    // countSites
+    // Pre-conditions:
+    //        - a and b are two non-null Species objects
+    //          whose sequences have already been aligned
+    //        - deleteGaps is true to leave out the columns where either
+    //          sequence has a gap (see isGap)
+    // Post-conditions:
+    //        - Returns the number of columns compared in the high 32 bits and
+    //          the number of those where the sequences differ in the low 32
+    //          bits, counted in one pass over the bit-planes (or the bytes of
+    //          short sequences) without allocating
+    //        - If the sequences are not the same length,
+    //          an IllegalArgumentException is thrown
+    public static long countSites(Species a, Species b, boolean deleteGaps) {
+        checkAligned(a, b);
+        int length = a.residues.length;
+        if( !deleteGaps ) {
+            int numDiffs = (a.planes != null && b.planes != null) ? countMismatches(a.planes, b.planes)
+                                                                  : countMismatches(a.residues, b.residues);
+            return ((long)length << 32) | numDiffs;
+        }
+        if( a.gaps == null || b.gaps == null ) {
+            return countSites(a.residues, b.residues);
+        }
+
+        // a column counts if neither code is a gap; the gap masks are 0 past the end, like the planes
+        long[] planes1 = a.planes;
+        long[] planes2 = b.planes;
+        int numDiffs = 0;
+        int numGaps = 0;
+        for( int w=0, block=0; w<planes1.length; w+=PLANES, block++ ) {
+            long diff = (planes1[w] ^ planes2[w])
+                      | (planes1[w+1] ^ planes2[w+1])
+                      | (planes1[w+2] ^ planes2[w+2])
+                      | (planes1[w+3] ^ planes2[w+3])
+                      | (planes1[w+4] ^ planes2[w+4])
+                      | (planes1[w+5] ^ planes2[w+5])
+                      | (planes1[w+6] ^ planes2[w+6]);
+            long gap = a.gaps[block] | b.gaps[block];
+            numDiffs += Long.bitCount(diff & ~gap);
+            numGaps += Long.bitCount(gap);
+        }
+        long counts = ((long)(length - numGaps) << 32) | numDiffs;
+        assert counts == countSites(a.residues, b.residues) : "bit-sliced sites differ for " + a.name + ", " + b.name;
+        return counts;
+    }
+
+    // countSites
+    // Pre-conditions:
+    //        - seq1 and seq2 are encoded sequences of the same length
+    // Post-conditions:
+    //        - Same as above with deleteGaps, one column at a time
+    public static long countSites(byte[] seq1, byte[] seq2) {
+        int numSites = 0;
+        int numDiffs = 0;
+        for( int i=0; i<seq1.length; i++ ) {
+            if( !isGap(seq1[i]) && !isGap(seq2[i]) ) {
+                numSites++;
+                if( seq1[i] != seq2[i] ) {
+                    numDiffs++;
+                }
+            }
+        }
+        return ((long)numSites << 32) | numDiffs;
+    }
+
+    // checkAligned
+    // Pre-conditions:
+    //        - a and b are two non-null Species objects
+    // Post-conditions:
+    //        - If their sequences are not the same length, an IllegalArgumentException naming them is thrown
+    public static void checkAligned(Species a, Species b) {
+        if( a.residues.length != b.residues.length ) {
+            throw new IllegalArgumentException("Sequences must already be aligned: " + a.name + " has "
+                                               + a.residues.length + " residues, " + b.name + " has "
+                                               + b.residues.length);
+        }
+        return;
+    }
+
+    // isGap
+    // Pre-conditions:
+    //        - code was produced by encodeResidue
+    // Post-conditions:
+    //        - Returns true if code is an alignment gap ('-' or '.') or an unknown residue ('?'), which
+    //          pairwise deletion leaves out
+    public static boolean isGap(byte code) {
+        return code == '-' || code == '.' || code == '?';
+    }
+
+    // countMismatches
+    // Pre-conditions:
+    //        - seq1 and seq2 are encoded sequences of the same length
+    // Post-conditions:
+    //        - Returns the number of positions where they differ, one column at a time
+    public static int countMismatches(byte[] seq1, byte[] seq2) {
         int numDiffs = 0;
         for( int i=0; i<seq1.length; i++ ) {
-            if( !seq1[i].equals(seq2[i]) ) {
+            if( seq1[i] != seq2[i] ) {
                 numDiffs++;
             }
         }
-        
-        return ((double)numDiffs)/seq1.length;
+        return numDiffs;
+    }
+
+    // countMismatches
+    // Pre-conditions:
+    //        - planes1 and planes2 were made by bitSlice from sequences of the same length
+    // Post-conditions:
+    //        - Returns the number of positions where the sequences differ, 64 columns at a time: a column
+    //          differs if any bit of its codes differs, so the differing columns of a word are the OR of the
+    //          XORs of its planes, and Long.bitCount counts them
+    public static int countMismatches(long[] planes1, long[] planes2) {
+        return countMismatches(planes1, planes2, 0, planes1.length);
+    }
+
+    // countMismatches
+    // Pre-conditions:
+    //        - planes1 and planes2 hold bit-planes in the layout of bitSlice
+    //        - from and to are multiples of PLANES, the bounds of the blocks to compare
+    // Post-conditions:
+    //        - Same as above, for the blocks of planes words from..to only
+    public static int countMismatches(long[] planes1, long[] planes2, int from, int to) {
+        int numDiffs = 0;
+        for( int w=from; w<to; w+=PLANES ) {
+            long diff = (planes1[w] ^ planes2[w])
+                      | (planes1[w+1] ^ planes2[w+1])
+                      | (planes1[w+2] ^ planes2[w+2])
+                      | (planes1[w+3] ^ planes2[w+3])
+                      | (planes1[w+4] ^ planes2[w+4])
+                      | (planes1[w+5] ^ planes2[w+5])
+                      | (planes1[w+6] ^ planes2[w+6]);
+            numDiffs += Long.bitCount(diff);
+        }
+        return numDiffs;
+    }
+
+    // bitSlice
+    // Pre-conditions:
+    //        - residues is an encoded sequence
+    // Post-conditions:
+    //        - Returns the residues as bit-planes: for each block of 64 columns, PLANES words in a row,
+    //          where bit c of word p is bit p of the code of column c; columns past the end are 0
+    //        - Returns null if the sequence is shorter than BIT_SLICE_MIN_LENGTH, where comparing
+    //          bytes is as fast, or holds a code outside 0..127 (not made by encodeResidue); distance
+    //          then compares the bytes instead
+    public static long[] bitSlice(byte[] residues) {
+        if( residues.length < BIT_SLICE_MIN_LENGTH ) {
+            return null;
+        }
+        long[] planes = new long[planesLength(residues.length)];
+        if( !bitSlice(residues, 0, residues.length, planes, 0) ) {
+            return null;
+        }
+        return planes;
+    }
+
+    // bitSlice
+    // Pre-conditions:
+    //        - codes[from..to) are encoded residues
+    //        - planes has planesLength(to - from) words from offset on
+    // Post-conditions:
+    //        - Writes codes[from..to) into planes from offset on, in the layout described above
+    //        - Returns false, leaving planes partly written, if a code is outside 0..127
+    public static boolean bitSlice(byte[] codes, int from, int to, long[] planes, int offset) {
+        // fills one block of 64 columns at a time in locals, without branching on the bits
+        for( int block=from, base=offset; block<to; block+=64, base+=PLANES ) {
+            int blockEnd = Math.min(to, block + 64);
+            long p0 = 0, p1 = 0, p2 = 0, p3 = 0, p4 = 0, p5 = 0, p6 = 0;
+            int high = 0;
+            for( int i=block; i<blockEnd; i++ ) {
+                long code = codes[i];
+                int c = i - block;
+                high |= codes[i];
+                p0 |= (code & 1) << c;
+                p1 |= ((code >>> 1) & 1) << c;
+                p2 |= ((code >>> 2) & 1) << c;
+                p3 |= ((code >>> 3) & 1) << c;
+                p4 |= ((code >>> 4) & 1) << c;
+                p5 |= ((code >>> 5) & 1) << c;
+                p6 |= ((code >>> 6) & 1) << c;
+            }
+            if( high < 0 ) {
+                return false;
+            }
+            planes[base] = p0;
+            planes[base + 1] = p1;
+            planes[base + 2] = p2;
+            planes[base + 3] = p3;
+            planes[base + 4] = p4;
+            planes[base + 5] = p5;
+            planes[base + 6] = p6;
+        }
+        return true;
+    }
+
+    // gapMask
+    // Pre-conditions:
+    //        - residues is an encoded sequence
+    // Post-conditions:
+    //        - Returns one word per block of 64 columns, in the order of the blocks of bitSlice, where bit c is
+    //          set if column c of the block is a gap (see isGap); columns past the end are 0
+    public static long[] gapMask(byte[] residues) {
+        long[] mask = new long[(residues.length + 63) >>> 6];
+        for( int i=0; i<residues.length; i++ ) {
+            if( isGap(residues[i]) ) {
+                mask[i >>> 6] |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    // planesLength
+    // Pre-conditions:
+    //        - length is not negative
+    // Post-conditions:
+    //        - Returns the number of words bitSlice uses for length columns
+    public static int planesLength(int length) {
+        return ((length + 63) >>> 6) * PLANES;
     }
-}
\ No newline at end of file
+}
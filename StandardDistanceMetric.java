@@ -0,0 +1,90 @@
+/* 
+ * StandardDistanceMetric.java
+ *
+ * The distance metrics of DistanceMetric that the program ships with.
+ * The corrected metrics estimate the number of substitutions per site
+ * from the observed fraction p of differing columns, undoing the
+ * substitutions hidden by later ones at the same site. Past the point
+ * where a correction has no finite value (the pair is saturated) the
+ * distance is clamped to MAX_DISTANCE, so saturated pairs cluster last
+ * instead of producing infinities or NaN.
+ *
+ */
+
+public enum StandardDistanceMetric implements DistanceMetric {
+    // The fraction of columns that differ, as Species.distance
+    P_DISTANCE("p-distance", false) {
+        public double distance(int numDiffs, int numSites) {
+            return ((double)numDiffs)/numSites;
+        }
+    },
+
+    // The Poisson correction, -ln(1 - p), for substitutions that occur at
+    // the same rate at every site
+    POISSON("poisson", false) {
+        public double distance(int numDiffs, int numSites) {
+            return corrected(1 - ((double)numDiffs)/numSites);
+        }
+    },
+
+    // Kimura's empirical correction for protein sequences,
+    // -ln(1 - p - 0.2 p^2), which saturates near p = 0.854
+    KIMURA("kimura", false) {
+        public double distance(int numDiffs, int numSites) {
+            double p = ((double)numDiffs)/numSites;
+            return corrected(1 - p - 0.2*p*p);
+        }
+    },
+
+    // The p-distance over the columns where neither species has a gap
+    // (pairwise deletion); a pair with no such column is an error
+    PAIRWISE_DELETION("pairwise-deletion", true) {
+        public double distance(int numDiffs, int numSites) {
+            return ((double)numDiffs)/numSites;
+        }
+    };
+
+    public static final double MAX_DISTANCE = 10.0;     // Distance of a saturated pair
+
+    private final String name;              // Name on the command line and in fingerprints
+    private final boolean deletesGaps;      // Whether gap columns are left out per pair
+
+    //    - Creates a metric with the given name
+    StandardDistanceMetric(String name, boolean deletesGaps) {
+        this.name = name;
+        this.deletesGaps = deletesGaps;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public boolean deletesGaps() {
+        return this.deletesGaps;
+    }
+
+    // forName
+    // Pre-conditions:
+    //        - name is a string
+    // Post-conditions:
+    //        - Returns the metric whose getName() is name, ignoring case, or null if there is none
+    public static StandardDistanceMetric forName(String name) {
+        for( StandardDistanceMetric metric : values() ) {
+            if( metric.name.equalsIgnoreCase(name) ) {
+                return metric;
+            }
+        }
+        return null;
+    }
+
+    //    - Returns -ln(x) for x in (0, 1], or MAX_DISTANCE if that is larger or x is not positive
+    private static double corrected(double x) {
+        if( x >= 1 ) {
+            return 0;
+        }
+        if( x <= 0 ) {
+            return MAX_DISTANCE;
+        }
+        return Math.min(-Math.log(x), MAX_DISTANCE);
+    }
+}
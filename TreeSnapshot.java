@@ -0,0 +1,318 @@
+/*
+ * TreeSnapshot.java
+ *
+ * Saves a built tree, with its species, to a compact binary file and
+ * loads it back without parsing FASTA or clustering. Loading maps the file
+ * into memory and replays its nodes into a CompactTree in O(n); the query
+ * indexes are rebuilt from the tree on first use, which is cheaper than
+ * reading them from disk.
+ *
+ * A snapshot records the key of the input it was built from, normally
+ * key(fastaFile, options): the SHA-256 of the FASTA bytes and of the
+ * option fingerprint. read returns null when the key or the format
+ * version does not match, so a stale snapshot is rebuilt rather than
+ * served.
+ *
+ * Format (all numbers little-endian, like DistanceMatrixWriter's):
+ *
+ *   bytes  0-3   magic "PHYS"
+ *   int32        format version (2)
+ *   int32        flags: bit 0 set if the residues of the species are stored
+ *   32 bytes     key of the input
+ *   int32        s, the number of species (in getAllSpecies() order)
+ *   int32        n, the number of nodes
+ *   s times      int32 byte length, then the UTF-8 bytes of the name;
+ *                then, if residues are stored, int32 count and the residues
+ *   0-3 bytes    zero padding, to a multiple of 4
+ *   int32        n species indexes, one per node (-1 for a non-terminal)
+ *   int32        n left child positions (-1 for a leaf)
+ *   int32        n right child positions (-1 for a leaf)
+ *   0-7 bytes    zero padding, to a multiple of 8
+ *   float64      n edge weights to the children (0 for a leaf)
+ *
+ * Nodes are stored children first (reverse pre-order), so the root is the
+ * last node and every child position is smaller than its parent's.
+ * Version 1 snapshots may hold two species of the same name sharing one
+ * leaf, which FastaReader no longer produces; they are rebuilt.
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+public class TreeSnapshot {
+    public static final int VERSION = 2;
+    public static final int KEY_LENGTH = 32;
+    private static final byte[] MAGIC = { 'P', 'H', 'Y', 'S' };
+    private static final int FLAG_RESIDUES = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private CompactTree tree;             // The loaded tree
+    private ArrayList<Species> species;   // Its species, in the order they were saved
+    private boolean residues;             // Whether the residues of the species were saved
+
+    // CONSTRUCTOR
+
+    //    - Wraps a loaded tree and its species
+    private TreeSnapshot(CompactTree tree, ArrayList<Species> species, boolean residues) {
+        this.tree = tree;
+        this.species = species;
+        this.residues = residues;
+        return;
+    }
+
+    // ACCESSORS
+
+    // getTree
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the loaded tree
+    public CompactTree getTree() {
+        return this.tree;
+    }
+
+    // getSpecies
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns the loaded species, in the order they were saved; leaves refer to these objects
+    public ArrayList<Species> getSpecies() {
+        return this.species;
+    }
+
+    // hasResidues
+    // Pre-conditions:
+    //        - None
+    // Post-conditions:
+    //        - Returns true if the residues of the species were saved; otherwise every loaded species has an
+    //          empty sequence
+    public boolean hasResidues() {
+        return this.residues;
+    }
+
+    // STATIC
+
+    // write
+    // Pre-conditions:
+    //        - file is the path to write
+    //        - tree is a built tree whose leaves hold species of the list species
+    //        - key is the KEY_LENGTH-byte key of the input the tree was built from
+    //        - residues is true if the sequences are saved too; without them, a loaded tree answers
+    //          queries but cannot take new species or be rebuilt
+    // Post-conditions:
+    //        - file holds the tree and species in the format described above
+    public static void write(File file, CompactTree tree, List<Species> species, byte[] key,
+                             boolean residues) throws IOException {
+        if( key.length != KEY_LENGTH ) {
+            throw new IllegalArgumentException("key must be " + KEY_LENGTH + " bytes: " + key.length);
+        }
+        IdentityHashMap<Species, Integer> speciesIndex = new IdentityHashMap<Species, Integer>();
+        for( int i=0; i<species.size(); i++ ) {
+            speciesIndex.put(species.get(i), i);
+        }
+        int[] order = childrenFirst(tree);
+        int[] position = new int[tree.size()];
+        for( int k=0; k<order.length; k++ ) {
+            position[order[k]] = k;
+        }
+
+        try( FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                                                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING) ) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(residues ? FLAG_RESIDUES : 0);
+            buffer.put(key);
+            buffer.putInt(species.size());
+            buffer.putInt(order.length);
+            long length = 4 + 4 + 4 + KEY_LENGTH + 4 + 4;
+            for( Species s : species ) {
+                byte[] name = s.getName().getBytes(StandardCharsets.UTF_8);
+                length += DistanceMatrixWriter.putBytes(channel, buffer, name);
+                if( residues ) {
+                    length += DistanceMatrixWriter.putBytes(channel, buffer, s.getResidues());
+                }
+            }
+            length += pad(channel, buffer, length, 4);
+            for( int id : order ) {
+                DistanceMatrixWriter.ensureRoom(channel, buffer, 4);
+                buffer.putInt(tree.isLeaf(id) ? speciesIndex.get(tree.getSpecies(id)) : -1);
+            }
+            for( int id : order ) {
+                DistanceMatrixWriter.ensureRoom(channel, buffer, 4);
+                buffer.putInt(tree.isLeaf(id) ? -1 : position[tree.getLeft(id)]);
+            }
+            for( int id : order ) {
+                DistanceMatrixWriter.ensureRoom(channel, buffer, 4);
+                buffer.putInt(tree.isLeaf(id) ? -1 : position[tree.getRight(id)]);
+            }
+            length += 12L * order.length;
+            pad(channel, buffer, length, 8);
+            for( int id : order ) {
+                DistanceMatrixWriter.ensureRoom(channel, buffer, 8);
+                buffer.putDouble(tree.getDistanceToChild(id));
+            }
+            buffer.flip();
+            while( buffer.hasRemaining() ) {
+                channel.write(buffer);
+            }
+        }
+        return;
+    }
+
+    // read
+    // Pre-conditions:
+    //        - file is the path of a snapshot written by write
+    //        - key is the key of the input the tree is wanted for
+    // Post-conditions:
+    //        - Returns the saved tree and species, or null if file does not exist or was written
+    //          for another key or by another version of the format
+    //        - If file cannot be read or is not a well-formed snapshot, an IOException is thrown
+    public static TreeSnapshot read(File file, byte[] key) throws IOException {
+        if( !file.isFile() ) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try( FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ) ) {
+            if( channel.size() > Integer.MAX_VALUE ) {
+                throw new IOException("Snapshot too large to map: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if( !java.util.Arrays.equals(magic, MAGIC) ) {
+                throw new IOException("Not a tree snapshot: " + file);
+            }
+            int version = buffer.getInt();
+            int flags = buffer.getInt();
+            byte[] savedKey = new byte[KEY_LENGTH];
+            buffer.get(savedKey);
+            if( version != VERSION || !MessageDigest.isEqual(savedKey, key) ) {
+                return null;
+            }
+            int numSpecies = buffer.getInt();
+            int numNodes = buffer.getInt();
+            if( numSpecies < 0 || numNodes < 0 || numNodes > 2L * numSpecies ) {
+                throw new IOException("Corrupt tree snapshot: " + file);
+            }
+
+            ArrayList<Species> species = new ArrayList<Species>(numSpecies);
+            for( int i=0; i<numSpecies; i++ ) {
+                String name = new String(getBytes(buffer), StandardCharsets.UTF_8);
+                byte[] residues = ((flags & FLAG_RESIDUES) != 0) ? getBytes(buffer) : new byte[0];
+                species.add(new Species(name, residues));
+            }
+            buffer.position(align(buffer.position(), 4));
+            int speciesStart = buffer.position();
+            int leftStart = speciesStart + 4 * numNodes;
+            int rightStart = leftStart + 4 * numNodes;
+            int branchStart = align(rightStart + 4 * numNodes, 8);
+
+            // replays the nodes children first, so both children of a node already have their ids
+            CompactTree tree = new CompactTree(numNodes);
+            int[] id = new int[numNodes];
+            for( int k=0; k<numNodes; k++ ) {
+                int s = buffer.getInt(speciesStart + 4 * k);
+                if( s >= 0 ) {
+                    id[k] = tree.addLeaf(species.get(s));
+                } else {
+                    int left = buffer.getInt(leftStart + 4 * k);
+                    int right = buffer.getInt(rightStart + 4 * k);
+                    if( left < 0 || left >= k || right < 0 || right >= k ) {
+                        throw new IOException("Corrupt tree snapshot: " + file);
+                    }
+                    id[k] = tree.addInternal(id[left], id[right], buffer.getDouble(branchStart + 8 * k));
+                }
+            }
+            if( numNodes > 0 ) {
+                tree.setRoot(id[numNodes - 1]);
+            }
+            return new TreeSnapshot(tree, species, (flags & FLAG_RESIDUES) != 0);
+        } catch( RuntimeException e ) {
+            throw new IOException("Corrupt tree snapshot: " + file, e);
+        }
+    }
+
+    // key
+    // Pre-conditions:
+    //        - fastaFile is the path of a readable input file
+    //        - options holds the settings the tree is built with
+    // Post-conditions:
+    //        - Returns the SHA-256 of the contents of fastaFile followed by options.getFingerprint(),
+    //          which changes whenever the input or a setting that shapes the tree does
+    public static byte[] key(File fastaFile, PhyloTreeOptions options) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        try( InputStream in = new FileInputStream(fastaFile) ) {
+            byte[] chunk = new byte[BUFFER_SIZE];
+            for( int read = in.read(chunk); read >= 0; read = in.read(chunk) ) {
+                digest.update(chunk, 0, read);
+            }
+        }
+        digest.update((byte)0);
+        digest.update(options.getFingerprint().getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    //    - Returns the ids of the nodes of tree in reverse pre-order, so each node comes after its children
+    private static int[] childrenFirst(CompactTree tree) {
+        int root = tree.getRoot();
+        if( root == CompactTree.NONE ) {
+            return new int[0];
+        }
+        int[] order = new int[2 * tree.getNumLeafs(root) - 1];
+        int[] stack = new int[order.length];
+        int top = 0;
+        int next = order.length;
+        stack[top++] = root;
+        while( top > 0 ) {
+            int id = stack[--top];
+            order[--next] = id;
+            if( !tree.isLeaf(id) ) {
+                stack[top++] = tree.getLeft(id);
+                stack[top++] = tree.getRight(id);
+            }
+        }
+        return order;
+    }
+
+    //    - Reads an int32 length and that many bytes
+    private static byte[] getBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    //    - Writes zeros until length is a multiple of alignment; returns the number written
+    private static int pad(FileChannel channel, ByteBuffer buffer, long length, int alignment) throws IOException {
+        int padding = (int)((alignment - length % alignment) % alignment);
+        DistanceMatrixWriter.ensureRoom(channel, buffer, padding);
+        for( int i=0; i<padding; i++ ) {
+            buffer.put((byte)0);
+        }
+        return padding;
+    }
+
+    //    - Returns position rounded up to a multiple of alignment
+    private static int align(int position, int alignment) {
+        return (position + alignment - 1) / alignment * alignment;
+    }
+}
@@ -0,0 +1,409 @@
+/* 
+ * Benchmark.java
+ *
+ * Measures the hot paths of the program on synthetic alignments of
+ * increasing size and writes one CSV row per (benchmark, size), so runs on
+ * different commits can be compared or plotted as scaling curves.
+ *
+ * Each benchmark is run for a number of warmup iterations, then timed for
+ * a number of measured iterations. For every measured iteration the wall
+ * time and the bytes allocated by the benchmark thread are recorded (the
+ * allocation counter only sees the calling thread, so use -threads 1 when
+ * allocation matters). The CSV columns are:
+ *
+ *   label, benchmark, species, length, strategy, threads, opsPerIteration,
+ *   meanMs, minMs, nsPerOp, bytesPerOp, allocMBPerSec
+ *
+ * The sketch benchmark times approximate builds (BuildStrategy.UPGMA_SKETCH)
+ * and also measures how far their trees are from the exact UPGMA tree of
+ * the same alignment, one row per size in a second CSV file:
+ *
+ *   label, species, length, kmer, sketchSize, bands, distances, exactDistances,
+ *   robinsonFoulds, normalizedRobinsonFoulds, meanPatristicError, maxPatristicError
+ *
+ * distances counts the pairs the approximate build compared, against the
+ * n(n-1)/2 of the exact one. robinsonFoulds is the number of splits of the
+ * leaves found in only one of the two trees, normalized by the 2(n-3) of
+ * two fully different binary trees. The patristic errors are the mean and
+ * largest relative difference of the leaf-to-leaf distances along the two
+ * trees, over the query pairs of the lca benchmark.
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * java Benchmark [options]
+ *
+ *   -sizes 100,1000,...     numbers of species to test (default 100,300,1000,3000)
+ *   -length N               alignment length (default 300)
+ *   -mutation R             per-column mutation rate per branch (default 0.05)
+ *   -seed N                 generator seed (default 1)
+ *   -warmup N               warmup iterations (default 2)
+ *   -iterations N           measured iterations (default 5)
+ *   -strategy NAME          BuildStrategy used to build trees (default UPGMA_NN_CHAIN)
+ *   -threads N              worker threads per build (default 1)
+ *   -benchmarks a,b,...     subset of: distance, load, build, lca, evdistance,
+ *                           tostring, treestring, driver, sketch (default: all
+ *                           but sketch)
+ *   -sketch K,SIZE,BANDS    k-mer length, sketch size and bands of the sketch
+ *                           benchmark (default 6,128,64; see PhyloTreeOptions.setSketch)
+ *   -dir PATH               where generated alignments are cached (default: temp dir)
+ *   -out PATH               CSV file to append to (default bench_output.txt)
+ *   -accuracy PATH          CSV file the sketch benchmark appends its errors to
+ *                           (default bench_accuracy.txt)
+ *   -label TEXT             value of the label column, e.g. a commit id (default "run")
+ *
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+public class Benchmark {
+    private static final int QUERIES = 10000;          // Queries per iteration of the lca/evdistance benchmarks
+    private static final int DISTANCE_SPECIES = 200;   // Species whose pairs the distance benchmark compares
+
+    public static volatile double sink;                // Keeps results alive so the JIT cannot drop the work
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 100, 300, 1000, 3000 };
+        int length = 300;
+        double mutation = 0.05;
+        long seed = 1;
+        int warmup = 2;
+        int iterations = 5;
+        BuildStrategy strategy = BuildStrategy.UPGMA_NN_CHAIN;
+        int threads = 1;
+        List<String> benchmarks = Arrays.asList("distance", "load", "build", "lca", "evdistance", "tostring", "treestring", "driver");
+        File dir = new File(System.getProperty("java.io.tmpdir"), "phylo-bench");
+        File outFile = new File("bench_output.txt");
+        File accuracyFile = new File("bench_accuracy.txt");
+        int[] sketch = { 6, 128, 64 };
+        String label = "run";
+
+        for( int i=0; i<args.length; i+=2 ) {
+            if( i+1 == args.length ) {
+                System.err.println("Error: Missing value for option " + args[i]);
+                System.exit(2);
+            }
+            String value = args[i+1];
+            switch( args[i] ) {
+                case "-sizes":
+                    String[] parts = value.split(",");
+                    sizes = new int[parts.length];
+                    for( int k=0; k<parts.length; k++ ) {
+                        sizes[k] = Integer.parseInt(parts[k].trim());
+                    }
+                    break;
+                case "-length":     length = Integer.parseInt(value); break;
+                case "-mutation":   mutation = Double.parseDouble(value); break;
+                case "-seed":       seed = Long.parseLong(value); break;
+                case "-warmup":     warmup = Integer.parseInt(value); break;
+                case "-iterations": iterations = Integer.parseInt(value); break;
+                case "-strategy":   strategy = BuildStrategy.valueOf(value); break;
+                case "-threads":    threads = Integer.parseInt(value); break;
+                case "-benchmarks": benchmarks = Arrays.asList(value.split(",")); break;
+                case "-dir":        dir = new File(value); break;
+                case "-out":        outFile = new File(value); break;
+                case "-accuracy":   accuracyFile = new File(value); break;
+                case "-sketch":
+                    String[] settings = value.split(",");
+                    if( settings.length != 3 ) {
+                        System.err.println("Error: -sketch takes K,SIZE,BANDS");
+                        System.exit(2);
+                    }
+                    for( int k=0; k<3; k++ ) {
+                        sketch[k] = Integer.parseInt(settings[k].trim());
+                    }
+                    break;
+                case "-label":      label = value; break;
+                default:
+                    System.err.println("Error: Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        dir.mkdirs();
+
+        PhyloTreeOptions options = new PhyloTreeOptions();
+        options.setBuildStrategy(strategy);
+        options.setNumThreads(threads);
+        options.setSketch(sketch[0], sketch[1], sketch[2]);
+
+        boolean newFile = !outFile.exists() || outFile.length() == 0;
+        try( PrintStream csv = new PrintStream(new FileOutputStream(outFile, true)) ) {
+            if( newFile ) {
+                csv.println("label,benchmark,species,length,strategy,threads,opsPerIteration,meanMs,minMs,nsPerOp,bytesPerOp,allocMBPerSec");
+            }
+            for( int n : sizes ) {
+                File fasta = new File(dir, "synthetic_" + n + "_" + length + "_" + seed + "_" + mutation + ".fasta");
+                if( !fasta.exists() ) {
+                    SyntheticAlignment.write(fasta, n, length, seed, mutation);
+                }
+                Fixture fixture = new Fixture(fasta, options, seed);
+                for( String name : benchmarks ) {
+                    Result result = run(name, fixture, warmup, iterations);
+                    String row = String.format(Locale.ROOT, "%s,%s,%d,%d,%s,%d,%d,%.3f,%.3f,%.1f,%.1f,%.1f",
+                                               label, name, n, length, strategy, threads, result.opsPerIteration,
+                                               result.meanNanos / 1e6, result.minNanos / 1e6,
+                                               result.meanNanos / result.opsPerIteration,
+                                               result.meanBytes / result.opsPerIteration,
+                                               result.meanBytes / 1e6 / (result.meanNanos / 1e9));
+                    csv.println(row);
+                    csv.flush();
+                    System.out.println(row);
+                    if( name.equals("sketch") ) {
+                        writeAccuracy(accuracyFile, label, fixture, length, sketch);
+                    }
+                }
+            }
+        }
+        return;
+    }
+
+    //    - Builds the approximate and exact UPGMA trees of the fixture and appends how far apart they are to file
+    private static void writeAccuracy(File file, String label, Fixture fixture, int length, int[] sketch)
+            throws IOException {
+        PhyloTreeOptions exactOptions = new PhyloTreeOptions();
+        exactOptions.setBuildStrategy(BuildStrategy.UPGMA_NN_CHAIN);
+        exactOptions.setNumThreads(fixture.options.getNumThreads());
+        PhyloTree exact = new PhyloTree(fixture.species, 100, exactOptions);
+        BuildMetrics metrics = new BuildMetrics(fixture.fasta.getName());
+        PhyloTree approximate = new PhyloTree(fixture.species, 100, fixture.sketchOptions(), metrics);
+
+        int n = fixture.species.length;
+        int robinsonFoulds = robinsonFoulds(exact, approximate, fixture.species);
+        double meanError = 0;
+        double maxError = 0;
+        int numPairs = 0;
+        for( int i=0; i<QUERIES; i++ ) {
+            String label1 = fixture.queries[2*i];
+            String label2 = fixture.queries[2*i+1];
+            double expected = exact.findEvolutionaryDistance(label1, label2);
+            if( expected > 0 ) {
+                double error = Math.abs(approximate.findEvolutionaryDistance(label1, label2) - expected) / expected;
+                meanError += error;
+                maxError = Math.max(maxError, error);
+                numPairs++;
+            }
+        }
+        meanError = (numPairs == 0) ? 0 : meanError / numPairs;
+
+        boolean newFile = !file.exists() || file.length() == 0;
+        try( PrintStream csv = new PrintStream(new FileOutputStream(file, true)) ) {
+            if( newFile ) {
+                csv.println("label,species,length,kmer,sketchSize,bands,distances,exactDistances,"
+                            + "robinsonFoulds,normalizedRobinsonFoulds,meanPatristicError,maxPatristicError");
+            }
+            String row = String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%d,%d,%d,%d,%.4f,%.4f,%.4f",
+                                       label, n, length, sketch[0], sketch[1], sketch[2],
+                                       metrics.getCount(BuildMetrics.Counter.DISTANCE_EVALUATIONS),
+                                       (long)n * (n - 1) / 2, robinsonFoulds,
+                                       (n > 3) ? robinsonFoulds / (2.0 * (n - 3)) : 0.0, meanError, maxError);
+            csv.println(row);
+            System.out.println("# accuracy " + row);
+        }
+        return;
+    }
+
+    //    - Returns the number of non-trivial splits of the leaves (ignoring the root) found in only one of the trees
+    private static int robinsonFoulds(PhyloTree tree1, PhyloTree tree2, Species[] species) {
+        Map<String, Integer> indexOf = new HashMap<String, Integer>();
+        for( int i=0; i<species.length; i++ ) {
+            indexOf.put(species[i].getName(), i);
+        }
+        Set<BitSet> splits1 = splits(tree1.getCompactTree(), indexOf);
+        Set<BitSet> splits2 = splits(tree2.getCompactTree(), indexOf);
+        int shared = 0;
+        for( BitSet split : splits1 ) {
+            if( splits2.contains(split) ) {
+                shared++;
+            }
+        }
+        return splits1.size() + splits2.size() - 2 * shared;
+    }
+
+    //    - Returns the leaf set below every node of tree with 2 to n-2 leaves, each given by the side of the split
+    //      without leaf 0, so the two sides of the root give the same split
+    private static Set<BitSet> splits(CompactTree tree, Map<String, Integer> indexOf) {
+        int n = indexOf.size();
+        Set<BitSet> splits = new HashSet<BitSet>();
+        BitSet[] below = new BitSet[tree.size()];
+        Deque<Integer> stack = new ArrayDeque<Integer>();
+        stack.push(tree.getRoot());
+        while( !stack.isEmpty() ) {
+            int id = stack.peek();
+            if( tree.isLeaf(id) ) {
+                below[id] = new BitSet(n);
+                below[id].set(indexOf.get(tree.getSpecies(id).getName()));
+                stack.pop();
+            } else if( below[tree.getLeft(id)] == null ) {
+                stack.push(tree.getLeft(id));
+                stack.push(tree.getRight(id));
+            } else {
+                below[id] = (BitSet)below[tree.getLeft(id)].clone();
+                below[id].or(below[tree.getRight(id)]);
+                below[tree.getLeft(id)] = null;
+                below[tree.getRight(id)] = null;
+                stack.pop();
+                int size = below[id].cardinality();
+                if( size >= 2 && size <= n - 2 ) {
+                    BitSet split = (BitSet)below[id].clone();
+                    if( split.get(0) ) {
+                        split.flip(0, n);
+                    }
+                    splits.add(split);
+                }
+            }
+        }
+        return splits;
+    }
+
+    //    - Runs one benchmark and returns its timings
+    private static Result run(String name, Fixture fixture, int warmup, int iterations) throws Exception {
+        for( int i=0; i<warmup; i++ ) {
+            fixture.invoke(name);
+        }
+        Result result = new Result();
+        result.minNanos = Double.POSITIVE_INFINITY;
+        for( int i=0; i<iterations; i++ ) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            result.opsPerIteration = fixture.invoke(name);
+            double nanos = System.nanoTime() - start;
+            bytes = allocatedBytes() - bytes;
+            result.meanNanos += nanos / iterations;
+            result.meanBytes += (double)bytes / iterations;
+            result.minNanos = Math.min(result.minNanos, nanos);
+        }
+        return result;
+    }
+
+    //    - Returns the bytes allocated so far by the calling thread, or 0 if the JVM cannot tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if( bean instanceof com.sun.management.ThreadMXBean ) {
+            return ((com.sun.management.ThreadMXBean)bean).getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    // Result
+    //        - Timings of one benchmark at one size
+    private static class Result {
+        long opsPerIteration;
+        double meanNanos;
+        double minNanos;
+        double meanBytes;
+    }
+
+    // Fixture
+    //        - The inputs shared by every benchmark at one size: the alignment file,
+    //          its species, a built tree and a fixed list of random label pairs
+    private static class Fixture {
+        private final File fasta;
+        private final PhyloTreeOptions options;
+        private final Species[] species;
+        private final PhyloTree tree;
+        private final String[] queries;
+        private final File outputDir;
+
+        Fixture(File fasta, PhyloTreeOptions options, long seed) throws IOException {
+            this.fasta = fasta;
+            this.options = options;
+            this.species = PhyloTree.loadSpeciesFile(fasta.getPath());
+            this.tree = new PhyloTree(this.species, 100, options);
+            Random random = new Random(seed);
+            this.queries = new String[2 * QUERIES];
+            for( int i=0; i<this.queries.length; i++ ) {
+                this.queries[i] = this.species[random.nextInt(this.species.length)].getName();
+            }
+            this.outputDir = new File(fasta.getParentFile(), "out");
+            this.outputDir.mkdirs();
+        }
+
+        //    - Runs one iteration of the named benchmark and returns the number of operations it performed
+        long invoke(String name) throws Exception {
+            double result = 0;
+            long ops = 1;
+            switch( name ) {
+                case "distance": {
+                    int m = Math.min(DISTANCE_SPECIES, this.species.length);
+                    ops = 0;
+                    for( int i=0; i<m; i++ ) {
+                        for( int j=i+1; j<m; j++ ) {
+                            result += Species.distance(this.species[i], this.species[j]);
+                            ops++;
+                        }
+                    }
+                    break;
+                }
+                case "load":
+                    result = PhyloTree.loadSpeciesFile(this.fasta.getPath()).length;
+                    break;
+                case "build":
+                    result = new PhyloTree(this.species, 100, this.options).getHeight();
+                    break;
+                case "sketch":
+                    result = new PhyloTree(this.species, 100, sketchOptions()).getHeight();
+                    break;
+                case "lca":
+                    for( int i=0; i<QUERIES; i++ ) {
+                        result += this.tree.findLeastCommonAncestor(this.queries[2*i], this.queries[2*i+1]).getNumLeafs();
+                    }
+                    ops = QUERIES;
+                    break;
+                case "evdistance":
+                    for( int i=0; i<QUERIES; i++ ) {
+                        result += this.tree.findEvolutionaryDistance(this.queries[2*i], this.queries[2*i+1]);
+                    }
+                    ops = QUERIES;
+                    break;
+                case "tostring":
+                    result = this.tree.toString().length();
+                    break;
+                case "treestring":
+                    result = this.tree.toTreeString().length();
+                    break;
+                case "driver":
+                    result = runDriver();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown benchmark " + name);
+            }
+            sink = result;
+            return ops;
+        }
+
+        //    - Returns the options of the fixture with the UPGMA_SKETCH strategy
+        PhyloTreeOptions sketchOptions() {
+            PhyloTreeOptions sketchOptions = new PhyloTreeOptions();
+            sketchOptions.setBuildStrategy(BuildStrategy.UPGMA_SKETCH);
+            sketchOptions.setNumThreads(this.options.getNumThreads());
+            sketchOptions.setDistanceMetric(this.options.getDistanceMetric());
+            sketchOptions.setSketch(this.options.getKmerLength(), this.options.getSketchSize(),
+                                    this.options.getSketchBands());
+            return sketchOptions;
+        }
+
+        //    - Runs Driver on the alignment with standard output and error discarded
+        private double runDriver() throws IOException {
+            File list = new File(this.outputDir, "list.txt");
+            try( PrintStream listOut = new PrintStream(list) ) {
+                listOut.println(this.fasta.getPath());
+            }
+            PrintStream stdout = System.out;
+            PrintStream stderr = System.err;
+            PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+            try {
+                System.setOut(discard);
+                System.setErr(discard);
+                Driver.main(new String[] { "-threads", String.valueOf(this.options.getNumThreads()),
+                                           list.getPath(), this.outputDir.getPath() });
+            } finally {
+                System.setOut(stdout);
+                System.setErr(stderr);
+            }
+            return new File(this.outputDir, this.fasta.getName() + ".distances").length();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/* 
+ * SyntheticAlignment.java
+ *
+ * Generates reproducible FASTA alignments for benchmarking.
+ *
+ * The species descend from a random tree: the first sequence is drawn at
+ * random, and every further species copies a randomly chosen earlier
+ * species and mutates each column with probability mutationRate (to a
+ * random amino acid, or occasionally to a gap). All sequences have the
+ * same length, so the output is already aligned. The same arguments
+ * always produce the same file.
+ *
+ * ----------------------------------------------------------------------------
+ *
+ * usage:
+ *
+ * java SyntheticAlignment numSpecies length seed mutationRate outputFile
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class SyntheticAlignment {
+    private static final byte[] AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY".getBytes(StandardCharsets.US_ASCII);
+    private static final double GAP_FRACTION = 0.05;  // Fraction of mutations that produce a gap
+    private static final int LINE_LENGTH = 60;
+
+    public static void main(String[] args) throws IOException {
+        if( args.length != 5 ) {
+            System.err.println("Error: Wrong number of arguments.");
+            System.exit(2);
+        }
+        write(new File(args[4]), Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+              Long.parseLong(args[2]), Double.parseDouble(args[3]));
+        return;
+    }
+
+    // generate
+    // Pre-conditions:
+    //        - numSpecies and length are positive
+    //        - mutationRate is the per-column probability of a mutation along each branch
+    // Post-conditions:
+    //        - Returns numSpecies aligned sequences of the given length, one byte per residue
+    public static byte[][] generate(int numSpecies, int length, long seed, double mutationRate) {
+        Random random = new Random(seed);
+        byte[][] sequences = new byte[numSpecies][];
+        sequences[0] = new byte[length];
+        for( int c=0; c<length; c++ ) {
+            sequences[0][c] = AMINO_ACIDS[random.nextInt(AMINO_ACIDS.length)];
+        }
+        for( int i=1; i<numSpecies; i++ ) {
+            byte[] child = sequences[random.nextInt(i)].clone();
+            for( int c=0; c<length; c++ ) {
+                if( random.nextDouble() < mutationRate ) {
+                    child[c] = (random.nextDouble() < GAP_FRACTION) ? (byte)'-' : AMINO_ACIDS[random.nextInt(AMINO_ACIDS.length)];
+                }
+            }
+            sequences[i] = child;
+        }
+        return sequences;
+    }
+
+    // write
+    // Pre-conditions:
+    //        - file is the path to write; the other arguments are as for generate
+    // Post-conditions:
+    //        - file holds the generated alignment in FASTA format, with NCBI-style
+    //          headers whose species names are S0000000, S0000001, ...
+    public static void write(File file, int numSpecies, int length, long seed, double mutationRate) throws IOException {
+        byte[][] sequences = generate(numSpecies, length, seed, mutationRate);
+        try( OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16) ) {
+            for( int i=0; i<numSpecies; i++ ) {
+                String header = String.format(">%d|synthetic|gi|%d|ref|SYN_%d.1|%s\n", i, i, i, speciesName(i));
+                out.write(header.getBytes(StandardCharsets.US_ASCII));
+                for( int c=0; c<length; c+=LINE_LENGTH ) {
+                    out.write(sequences[i], c, Math.min(LINE_LENGTH, length - c));
+                    out.write('\n');
+                }
+            }
+        }
+        return;
+    }
+
+    // speciesName
+    // Pre-conditions:
+    //        - i is the index of a generated species
+    // Post-conditions:
+    //        - Returns the name given to that species in the FASTA file
+    public static String speciesName(int i) {
+        return String.format("S%07d", i);
+    }
+}